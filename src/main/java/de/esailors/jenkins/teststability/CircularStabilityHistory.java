@@ -23,6 +23,13 @@
  */
 package de.esailors.jenkins.teststability;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+
 import jenkins.model.Jenkins;
 
 import com.thoughtworks.xstream.converters.Converter;
@@ -39,55 +46,422 @@ import javax.annotation.Nullable;
  * Circular history of test results.
  * <p>
  * Old records are dropped when <code>maxSize</code> is exceeded.
+ * <p>
+ * Results are kept in primitive arrays and can be read in order (oldest first)
+ * through {@link #size()}, {@link #getBuildNumber(int)}, {@link #isPassed(int)},
+ * {@link #buildNumbers()} and {@link #forEach(ResultVisitor)} without copying.
+ * <p>
+ * The history of a build is usually the history of the previous build plus
+ * one result. {@link #append(int, boolean)} therefore returns a new history
+ * which shares its storage with the old one: results are written to an
+ * append-only {@link Segment} twice as large as <code>maxSize</code>, and a
+ * history only remembers which part of the segment it sees. Once a segment is
+ * full (or another history already appended to it) the window is compacted
+ * into a fresh segment.
+ * <p>
+ * Each result may carry the timestamp of its build (stored as seconds relative
+ * to the segment) so that results older than a time window can be dropped
+ * with {@link #withoutResultsBefore(long)}.
+ * <p>
+ * Every added result also updates a CUSUM of the failure rate, which flags a
+ * test as unstable once it fails noticeably more often than it used to (see
+ * {@link #getUnstableSince()}). The detector state is carried over to
+ * appended histories, so it costs O(1) per result and also remembers results
+ * which already left the history.
  * 
  * @author ckutz
  */
 public class CircularStabilityHistory {
 	
-	  private Result[] data;
-	  private int head; 
-	  private int tail;
-	  // number of elements in queue
-      private int size = 0; 
-
-      private CircularStabilityHistory() {}
-      
-	  public CircularStabilityHistory(int maxSize) {
-	    data = new Result[maxSize];
-	    head = 0;
-	    tail = 0;
-	  }
-
-	  public boolean add(Result value) {
-	      data[tail] = value;
-	      tail++;
-	      if (tail == data.length) {
-	        tail = 0;
-	      }
-	      
-	      if (size == data.length) {  
-                head = (head + 1) % data.length;  
-           } else {  
-                size++;  
-           }  
-	      return true;
-	  }
-	  
-	  public Result[] getData() {
-		  Result[] copy = new Result[size];
-		  
-		  for (int i = 0; i < size; i++) {
-			  copy[i] = data[(head + i) % data.length];
-		  }
-		  return copy;
-	  }
+	private int maxSize;
+	private Segment segment;
+	// the results of this history are segment[start, end)
+	private int start;
+	private int end;
+	
+	// CUSUM of the failure rate: every failure adds 1 - CUSUM_DRIFT, every pass subtracts CUSUM_DRIFT
+	static final float CUSUM_DRIFT = 0.2f;
+	static final float CUSUM_THRESHOLD = 1.5f;
+	// caps the sum so that a test becomes stable again after a bounded number of passes
+	static final float CUSUM_MAX = 2 * CUSUM_THRESHOLD;
+	private float cusum;
+	// first failure since the sum was last 0
+	private int changeStart;
+	private int unstableSince;
+
+	public CircularStabilityHistory(int maxSize) {
+		this(maxSize, new Segment(capacityFor(maxSize)), 0, 0);
+	}
+
+	private CircularStabilityHistory(int maxSize, Segment segment, int start, int end) {
+		this.maxSize = maxSize;
+		this.segment = segment;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Returns a history over the given part of the segment with the change
+	 * detection state of this one.
+	 */
+	private CircularStabilityHistory view(int maxSize, int start, int end) {
+		CircularStabilityHistory view = new CircularStabilityHistory(maxSize, segment, start, end);
+		view.cusum = cusum;
+		view.changeStart = changeStart;
+		view.unstableSince = unstableSince;
+		return view;
+	}
+
+	private static int capacityFor(int maxSize) {
+		return 2 * maxSize;
+	}
+
+	public boolean add(Result value) {
+		add(value.buildNumber, value.passed, value.timestamp);
+		return true;
+	}
+
+	/**
+	 * Adds a result to this history.
+	 * <p>
+	 * Only to be used while building up a new history. Histories which may
+	 * already be referenced by a build must be extended with
+	 * {@link #append(int, boolean)}.
+	 */
+	public void add(int buildNumber, boolean passed) {
+		add(buildNumber, passed, 0);
+	}
+
+	/**
+	 * Adds a result with the timestamp of its build in milliseconds, 0 if unknown.
+	 * 
+	 * @see #add(int, boolean)
+	 */
+	public void add(int buildNumber, boolean passed, long timestamp) {
+		if (maxSize == 0) {
+			return;
+		}
+		if (!segment.append(end, buildNumber, passed, timestamp)) {
+			compact();
+			segment.append(end, buildNumber, passed, timestamp);
+		}
+		end++;
+		if (end - start > maxSize) {
+			start++;
+		}
+		detectChange(buildNumber, passed);
+	}
+
+	private void detectChange(int buildNumber, boolean passed) {
+		float next = cusum + (passed ? 0 : 1) - CUSUM_DRIFT;
+		if (next <= 0) {
+			cusum = 0;
+			changeStart = 0;
+			unstableSince = 0;
+			return;
+		}
+		if (cusum == 0) {
+			changeStart = buildNumber;
+		}
+		cusum = Math.min(next, CUSUM_MAX);
+		if (cusum > CUSUM_THRESHOLD && unstableSince == 0) {
+			unstableSince = changeStart;
+		}
+	}
+
+	/**
+	 * Build number of the first failure since which the test fails more often
+	 * than it used to, 0 if the test is considered stable.
+	 */
+	public int getUnstableSince() {
+		return unstableSince;
+	}
+
+	/**
+	 * Returns a new history consisting of this history plus the given result.
+	 * This history is left unchanged.
+	 */
+	public CircularStabilityHistory append(int buildNumber, boolean passed) {
+		return append(buildNumber, passed, 0);
+	}
+
+	/**
+	 * Returns a new history consisting of this history plus the given result
+	 * of a build with the given timestamp in milliseconds, 0 if unknown.
+	 * This history is left unchanged.
+	 */
+	public CircularStabilityHistory append(int buildNumber, boolean passed, long timestamp) {
+		CircularStabilityHistory next = view(maxSize, start, end);
+		next.add(buildNumber, passed, timestamp);
+		return next;
+	}
+
+	/**
+	 * Returns a history without the results of builds started before the given
+	 * timestamp in milliseconds.
+	 * <p>
+	 * Results with unknown timestamps (recorded before timestamps were stored)
+	 * are only dropped if an older result is known to be outside the window,
+	 * otherwise they are kept until they age out by <code>maxSize</code>.
+	 * This history is left unchanged; it is returned as is if nothing is dropped.
+	 */
+	public CircularStabilityHistory withoutResultsBefore(long timestamp) {
+		int newStart = start;
+		for (int i = start; i < end; i++) {
+			long time = segment.getTimestamp(i);
+			if (time >= timestamp) {
+				break;
+			}
+			if (time != 0) {
+				// results are ordered by build, so everything up to here is older
+				newStart = i + 1;
+			}
+		}
+		if (newStart == start) {
+			return this;
+		}
+		return view(maxSize, newStart, end);
+	}
+
+	/**
+	 * Moves the results of this history to the start of a new segment.
+	 */
+	private void compact() {
+		Segment compacted = new Segment(capacityFor(maxSize));
+		int size = size();
+		System.arraycopy(segment.buildNumbers, start, compacted.buildNumbers, 0, size);
+		System.arraycopy(segment.passed, start, compacted.passed, 0, size);
+		System.arraycopy(segment.times, start, compacted.times, 0, size);
+		compacted.timeBase = segment.timeBase;
+		compacted.used = size;
+		this.segment = compacted;
+		this.start = 0;
+		this.end = size;
+	}
+
+	/**
+	 * Returns a copy of the history, oldest result first.
+	 * <p>
+	 * Allocates a new array and a {@link Result} per entry; prefer the
+	 * index based accessors or {@link #forEach(ResultVisitor)}.
+	 */
+	public Result[] getData() {
+		Result[] copy = new Result[size()];
+
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = new Result(segment.buildNumbers[start + i], segment.passed[start + i], segment.getTimestamp(start + i));
+		}
+		return copy;
+	}
+
+	/**
+	 * Number of results currently in the history.
+	 */
+	public int size() {
+		return end - start;
+	}
+
+	/**
+	 * Build number of the result at the given index, where 0 is the oldest result.
+	 */
+	public int getBuildNumber(int index) {
+		return segment.buildNumbers[slot(index)];
+	}
+
+	/**
+	 * Whether the test passed in the result at the given index, where 0 is the oldest result.
+	 */
+	public boolean isPassed(int index) {
+		return segment.passed[slot(index)];
+	}
+
+	/**
+	 * Timestamp in milliseconds of the build of the result at the given index,
+	 * where 0 is the oldest result. Returns 0 if the timestamp is not known.
+	 */
+	public long getTimestamp(int index) {
+		return segment.getTimestamp(slot(index));
+	}
+
+	/**
+	 * Iterates over the build numbers of the history, oldest first.
+	 */
+	public PrimitiveIterator.OfInt buildNumbers() {
+		return new PrimitiveIterator.OfInt() {
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next < size();
+			}
+
+			@Override
+			public int nextInt() {
+				if (next >= size()) {
+					throw new NoSuchElementException();
+				}
+				return getBuildNumber(next++);
+			}
+		};
+	}
+
+	/**
+	 * Passes every result of the history to the visitor, oldest first.
+	 */
+	public void forEach(ResultVisitor visitor) {
+		for (int i = start; i < end; i++) {
+			visitor.visit(segment.buildNumbers[i], segment.passed[i]);
+		}
+	}
+
+	private int slot(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+		return start + index;
+	}
 
 	public boolean isEmpty() {
-		return data.length == 0;
+		return maxSize == 0;
 	}
 	
 	public int getMaxSize() {
-		return this.data.length;
+		return this.maxSize;
+	}
+
+	/**
+	 * Returns a history with the given maximum size holding the newest
+	 * results of this one. The storage is shared with this history.
+	 */
+	public CircularStabilityHistory copy(int maxSize) {
+		return view(maxSize, Math.max(start, end - maxSize), end);
+	}
+
+	/**
+	 * Receives the results of a {@link CircularStabilityHistory}.
+	 */
+	public interface ResultVisitor {
+		void visit(int buildNumber, boolean passed);
+	}
+
+	/**
+	 * Append-only storage shared by consecutive histories of a test.
+	 * Slots below <code>used</code> are never written again.
+	 */
+	private static final class Segment {
+		private static final int UNKNOWN_TIME = Integer.MIN_VALUE;
+
+		final int[] buildNumbers;
+		final boolean[] passed;
+		// seconds since timeBase
+		final int[] times;
+		long timeBase = -1;
+		int used;
+
+		Segment(int capacity) {
+			this.buildNumbers = new int[capacity];
+			this.passed = new boolean[capacity];
+			this.times = new int[capacity];
+		}
+
+		long getTimestamp(int slot) {
+			int time = times[slot];
+			return time == UNKNOWN_TIME ? 0 : (timeBase + time) * 1000;
+		}
+
+		private int encodeTime(long timestamp) {
+			if (timestamp <= 0) {
+				return UNKNOWN_TIME;
+			}
+			long seconds = timestamp / 1000;
+			if (timeBase < 0) {
+				timeBase = seconds;
+			}
+			long delta = seconds - timeBase;
+			return (int) Math.max(UNKNOWN_TIME + 1, Math.min(Integer.MAX_VALUE, delta));
+		}
+
+		/**
+		 * Writes a result to the given slot if it is the next free one.
+		 * 
+		 * @return <code>false</code> if the slot was already taken or the segment is full
+		 */
+		synchronized boolean append(int slot, int buildNumber, boolean passed, long timestamp) {
+			if (slot != used || slot == buildNumbers.length) {
+				return false;
+			}
+			this.buildNumbers[slot] = buildNumber;
+			this.passed[slot] = passed;
+			this.times[slot] = encodeTime(timestamp);
+			used++;
+			return true;
+		}
+
+		// object header and fields, plus three arrays of int, boolean and int per slot
+		long estimateHeapBytes() {
+			return 32 + 3 * 16 + 9L * buildNumbers.length;
+		}
+	}
+	
+	/**
+	 * Estimated heap size of this history. Its storage is usually shared with
+	 * the histories of the previous builds, so it is only counted if it is not
+	 * in <code>counted</code> yet.
+	 */
+	long estimateHeapBytes(Set<Object> counted) {
+		// object header and fields
+		long bytes = 40;
+		if (counted.add(segment)) {
+			bytes += segment.estimateHeapBytes();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Writes the history in the binary format of {@link StabilityDataFile}.
+	 * Timestamps are written as seconds relative to the first known one.
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		int size = size();
+		long timeBase = -1;
+		for (int i = 0; i < size && timeBase < 0; i++) {
+			long timestamp = getTimestamp(i);
+			if (timestamp > 0) {
+				timeBase = timestamp / 1000;
+			}
+		}
+		
+		out.writeInt(maxSize);
+		out.writeInt(size);
+		out.writeLong(timeBase);
+		for (int i = 0; i < size; i++) {
+			out.writeInt(getBuildNumber(i));
+			out.writeBoolean(isPassed(i));
+			long timestamp = getTimestamp(i);
+			out.writeInt(timestamp > 0 ? (int) (timestamp / 1000 - timeBase) : Segment.UNKNOWN_TIME);
+		}
+		out.writeFloat(cusum);
+		out.writeInt(changeStart);
+		out.writeInt(unstableSince);
+	}
+	
+	/**
+	 * Reads a history written by {@link #writeTo(DataOutput)}.
+	 */
+	static CircularStabilityHistory readFrom(DataInput in) throws IOException {
+		CircularStabilityHistory history = new CircularStabilityHistory(in.readInt());
+		int size = in.readInt();
+		long timeBase = in.readLong();
+		for (int i = 0; i < size; i++) {
+			int buildNumber = in.readInt();
+			boolean passed = in.readBoolean();
+			int time = in.readInt();
+			history.add(buildNumber, passed, time == Segment.UNKNOWN_TIME ? 0 : (timeBase + time) * 1000);
+		}
+		history.cusum = in.readFloat();
+		history.changeStart = in.readInt();
+		history.unstableSince = in.readInt();
+		return history;
 	}
 	
 	static {
@@ -105,36 +479,75 @@ public class CircularStabilityHistory {
 		public void marshal(Object source, HierarchicalStreamWriter writer,
 				MarshallingContext context) {
 			CircularStabilityHistory b = (CircularStabilityHistory) source;
+			// written as a circular buffer starting at slot 0
+			int size = b.size();
 			
 			writer.startNode("head");
-			writer.setValue(Integer.toString(b.head));
+			writer.setValue("0");
 			writer.endNode();
 			
 			writer.startNode("tail");
-			writer.setValue(Integer.toString(b.tail));
+			writer.setValue(Integer.toString(b.maxSize == 0 ? 0 : size % b.maxSize));
 			writer.endNode();
 
 			writer.startNode("size");
-			writer.setValue(Integer.toString(b.size));
+			writer.setValue(Integer.toString(size));
 			writer.endNode();
 			
 			writer.startNode("data");
-			writer.setValue(dataToString(b.data));
+			writer.setValue(dataToString(b));
+			writer.endNode();
+			
+			String times = timesToString(b);
+			if (times != null) {
+				writer.startNode("times");
+				writer.setValue(times);
+				writer.endNode();
+			}
+			
+			writer.startNode("change");
+			writer.setValue(b.cusum + ";" + b.changeStart + ";" + b.unstableSince);
 			writer.endNode();
 		}
 		
+		/**
+		 * Writes the timestamps in seconds, the first one absolute and every
+		 * following one relative to the previous known one. Unknown timestamps
+		 * are left empty.
+		 * 
+		 * @return <code>null</code> if no timestamp is known
+		 */
+		private @Nullable String timesToString(CircularStabilityHistory b) {
+			StringBuilder buf = new StringBuilder();
+			long previous = -1;
+			for (int i = 0; i < b.size(); i++) {
+				long seconds = b.getTimestamp(i) / 1000;
+				if (seconds > 0) {
+					buf.append(previous < 0 ? seconds : seconds - previous);
+					previous = seconds;
+				}
+				buf.append(",");
+			}
+			
+			if (previous < 0) {
+				return null;
+			}
+			buf.deleteCharAt(buf.length() - 1);
+			return buf.toString();
+		}
 		
-		private String dataToString(Result[] data) {
+		
+		private String dataToString(CircularStabilityHistory b) {
 			StringBuilder buf = new StringBuilder();
-			for (Result d : data) {
-				if(d == null) {
+			for (int i = 0; i < b.maxSize; i++) {
+				if (i >= b.size()) {
 					buf.append(",");
 					continue;
 				}
-				if (d.passed) {
-					buf.append(d.buildNumber).append(";").append("1,");
+				if (b.isPassed(i)) {
+					buf.append(b.getBuildNumber(i)).append(";").append("1,");
 				} else {
-					buf.append(d.buildNumber).append(";").append("0,");
+					buf.append(b.getBuildNumber(i)).append(";").append("0,");
 				}
 			}
 			
@@ -154,7 +567,7 @@ public class CircularStabilityHistory {
 			r.moveUp();
 			
 			r.moveDown();
-			int tail = Integer.parseInt(r.getValue());
+			// tail follows from head and size
 			r.moveUp();
 			
 			r.moveDown();
@@ -165,41 +578,54 @@ public class CircularStabilityHistory {
 			String data = r.getValue();
 			r.moveUp();
 			
-			CircularStabilityHistory buf = new CircularStabilityHistory();
-			Result[] b = stringToData(data);
+			long[] timestamps = new long[size];
+			String change = null;
+			while (r.hasMoreChildren()) {
+				r.moveDown();
+				if ("times".equals(r.getNodeName())) {
+					stringToTimes(r.getValue(), timestamps);
+				} else if ("change".equals(r.getNodeName())) {
+					change = r.getValue();
+				}
+				r.moveUp();
+			}
+			
+			String[] slots = data.split(",", -1);
+			CircularStabilityHistory buf = new CircularStabilityHistory(slots.length);
+			for (int i = 0; i < size; i++) {
+				String testResult = slots[(head + i) % slots.length];
+				String[] split2 = testResult.split(";");
+				int buildNumber = Integer.parseInt(split2[0]);
+				
+				// TODO: check that '0' is the only other allowed value:
+				buf.add(buildNumber, "1".equals(split2[1]), timestamps[i]);
+			}
 			
-			buf.data = b;
-			buf.head = head;
-			buf.size = size;
-			buf.tail = tail;
+			// histories written before change detection keep the state replayed from their results
+			if (change != null) {
+				String[] split = change.split(";");
+				buf.cusum = Float.parseFloat(split[0]);
+				buf.changeStart = Integer.parseInt(split[1]);
+				buf.unstableSince = Integer.parseInt(split[2]);
+			}
 			
 			return buf;
 		}
 		
-		private  Result[] stringToData(String s) {
+		private void stringToTimes(String s, long[] timestamps) {
 			String[] split = s.split(",", -1);
-			Result d[] = new Result[split.length];
-			
-			int i = 0;
-			for(String testResult : split) {
-				
-				if (testResult.isEmpty()) {
-					i++;
+			long previous = -1;
+			for (int i = 0; i < split.length && i < timestamps.length; i++) {
+				if (split[i].isEmpty()) {
 					continue;
 				}
-				
-				String[] split2 = testResult.split(";");
-				int buildNumber = Integer.parseInt(split2[0]);
-				
-				// TODO: check that '0' is the only other allowed value:
-				boolean buildResult = "1".equals(split2[1]) ? true : false;
-				
-				d[i] = new Result(buildNumber, buildResult);
-				
-				i++;
+				long seconds = Long.parseLong(split[i]);
+				if (previous >= 0) {
+					seconds += previous;
+				}
+				timestamps[i] = seconds * 1000;
+				previous = seconds;
 			}
-			
-			return d;
 		}
 
 	}
@@ -210,18 +636,21 @@ public class CircularStabilityHistory {
 		}
 	}
 
-	public void add(int buildNumber, boolean passed) {
-		add(new Result(buildNumber, passed));
+	/**
+	 * Build number of the newest failed result, 0 if all results passed.
+	 */
+	public int getLastFailure() {
+		for (int i = end - 1; i >= start; i--) {
+			if (!segment.passed[i]) {
+				return segment.buildNumbers[i];
+			}
+		}
+		return 0;
 	}
 
 	public boolean isAllPassed() {
-		
-		if (size == 0) {
-			return true;
-		}
-		
-		for (Result r : data) {
-			if (r != null && !r.passed) {
+		for (int i = start; i < end; i++) {
+			if (!segment.passed[i]) {
 				return false;
 			}
 		}
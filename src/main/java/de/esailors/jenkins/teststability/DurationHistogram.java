@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Recent durations of a test.
+ * <p>
+ * Durations are counted in fixed log-scale buckets: bucket 0 holds durations
+ * below 1ms, bucket <code>k</code> durations in <code>[2^(k-1), 2^k)</code> ms.
+ * Once {@link #DECAY_AT} samples are counted all buckets are halved, so the
+ * histogram follows the recent builds and every count fits into a byte.
+ * The buckets only place a duration within a factor of two, so the last
+ * {@link #RECENT} durations are also kept exactly for the median.
+ * <p>
+ * Instances are immutable, {@link #record(DurationHistogram, float)} returns
+ * the histogram of the next build in O(1).
+ */
+public class DurationHistogram {
+	
+	static final int BUCKETS = 24;
+	static final int DECAY_AT = 64;
+	// number of samples needed before a duration jump is reported
+	static final int MIN_SAMPLES = 5;
+	// number of exact durations kept for the median
+	static final int RECENT = 9;
+	
+	private final byte[] counts;
+	private final int samples;
+	// in seconds
+	private final float lastDuration;
+	private final float meanDuration;
+	// oldest first, the last one is lastDuration
+	private final float[] recent;
+	
+	private DurationHistogram(byte[] counts, int samples, float[] recent, float lastDuration, float meanDuration) {
+		this.counts = counts;
+		this.samples = samples;
+		this.recent = recent;
+		this.lastDuration = lastDuration;
+		this.meanDuration = meanDuration;
+	}
+	
+	/**
+	 * Returns the histogram of the previous build plus the given duration in seconds.
+	 */
+	public static DurationHistogram record(@CheckForNull DurationHistogram previous, float duration) {
+		byte[] counts;
+		int samples;
+		float[] recent;
+		float mean;
+		if (previous == null) {
+			counts = new byte[BUCKETS];
+			samples = 1;
+			recent = new float[] { duration };
+			mean = duration;
+		} else {
+			counts = previous.counts.clone();
+			samples = previous.samples + 1;
+			recent = appendRecent(previous.recent, duration);
+			// exponentially weighted, roughly the mean of the last 10 builds
+			mean = previous.meanDuration + 0.2f * (duration - previous.meanDuration);
+		}
+		
+		counts[bucket(duration)]++;
+		if (total(counts) >= DECAY_AT) {
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = (byte) ((counts[i] + 1) / 2);
+			}
+		}
+		return new DurationHistogram(counts, samples, recent, duration, mean);
+	}
+	
+	private static float[] appendRecent(float[] previous, float duration) {
+		int kept = Math.min(previous.length, RECENT - 1);
+		float[] recent = new float[kept + 1];
+		System.arraycopy(previous, previous.length - kept, recent, 0, kept);
+		recent[kept] = duration;
+		return recent;
+	}
+	
+	static int bucket(float duration) {
+		long millis = Math.round(duration * 1000d);
+		if (millis <= 0) {
+			return 0;
+		}
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+	}
+	
+	private static int total(byte[] counts) {
+		int total = 0;
+		for (byte c : counts) {
+			total += c;
+		}
+		return total;
+	}
+	
+	/**
+	 * Estimated percentile of the recent durations in seconds, e.g. 0.9. This is
+	 * the middle of a bucket, so it is only accurate within a factor of two.
+	 */
+	public float getPercentile(double p) {
+		int total = total(counts);
+		if (total == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(p * total);
+		int seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(1, rank)) {
+				// middle of the bucket
+				return i == 0 ? 0 : 0.75f * (1L << i) / 1000f;
+			}
+		}
+		return 0.75f * (1L << (BUCKETS - 1)) / 1000f;
+	}
+	
+	/**
+	 * Exact median of the last {@link #RECENT} durations in seconds.
+	 */
+	public float getMedian() {
+		float[] sorted = recent.clone();
+		Arrays.sort(sorted);
+		int middle = sorted.length / 2;
+		if (sorted.length % 2 == 0) {
+			return (sorted[middle - 1] + sorted[middle]) / 2;
+		}
+		return sorted[middle];
+	}
+	
+	public float getP90() {
+		return getPercentile(0.9);
+	}
+	
+	public float getLastDuration() {
+		return lastDuration;
+	}
+	
+	public float getMeanDuration() {
+		return meanDuration;
+	}
+	
+	/**
+	 * Total number of recorded builds.
+	 */
+	public int getSamples() {
+		return samples;
+	}
+	
+	/**
+	 * Last duration relative to the recent median, 1 if there are not enough samples.
+	 */
+	public float getRegression() {
+		float median = getMedian();
+		if (samples < MIN_SAMPLES || median <= 0) {
+			return 1;
+		}
+		return lastDuration / median;
+	}
+	
+	/**
+	 * Estimated heap size of this histogram.
+	 */
+	long estimateHeapBytes() {
+		// object header and fields, plus the counts and the recent durations
+		return 32 + 16 + counts.length + 16 + 4L * recent.length;
+	}
+	
+	/**
+	 * Writes the histogram in the binary format of {@link StabilityDataFile}.
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		out.writeByte(counts.length);
+		out.write(counts);
+		out.writeInt(samples);
+		out.writeByte(recent.length);
+		for (float d : recent) {
+			out.writeFloat(d);
+		}
+		out.writeFloat(lastDuration);
+		out.writeFloat(meanDuration);
+	}
+	
+	/**
+	 * Reads a histogram written by {@link #writeTo(DataOutput)}.
+	 */
+	static DurationHistogram readFrom(DataInput in) throws IOException {
+		byte[] counts = new byte[in.readUnsignedByte()];
+		in.readFully(counts);
+		int samples = in.readInt();
+		float[] recent = new float[in.readUnsignedByte()];
+		for (int i = 0; i < recent.length; i++) {
+			recent[i] = in.readFloat();
+		}
+		float last = in.readFloat();
+		float mean = in.readFloat();
+		return new DurationHistogram(counts, samples, recent, last, mean);
+	}
+}
@@ -0,0 +1,374 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.TestResult;
+import hudson.tasks.junit.TestResultAction;
+import hudson.tasks.junit.TestResultAction.Data;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import jenkins.util.SystemProperties;
+
+/**
+ * Rebuilds the stability histories of all retained builds of a job from
+ * their JUnit results.
+ * <p>
+ * Builds are loaded on a bounded thread pool and folded oldest first into
+ * one history per test, so every build gets the same {@link StabilityTestData}
+ * the publisher would have recorded had it been enabled all along.
+ */
+public final class HistoryRebuild implements Runnable {
+	
+	private static final Logger LOGGER = Logger.getLogger(HistoryRebuild.class.getName());
+	
+	static final int THREADS = SystemProperties.getInteger(HistoryRebuild.class.getName() + ".threads", 4);
+	
+	private static final Map<String, HistoryRebuild> REBUILDS = new ConcurrentHashMap<String, HistoryRebuild>();
+	
+	public enum State { RUNNING, FINISHED, CANCELLED, FAILED }
+	
+	private final Job<?, ?> job;
+	private final int maxHistoryLength;
+	private final int historyWindowDays;
+	private final boolean hashTestIds;
+	
+	private volatile State state = State.RUNNING;
+	private volatile int total;
+	private volatile int done;
+	private volatile boolean cancelled;
+	private volatile String error;
+	
+	private HistoryRebuild(Job<?, ?> job, int maxHistoryLength, int historyWindowDays, boolean hashTestIds) {
+		this.job = job;
+		this.maxHistoryLength = maxHistoryLength;
+		this.historyWindowDays = historyWindowDays;
+		this.hashTestIds = hashTestIds;
+	}
+	
+	/**
+	 * Returns the running or last finished rebuild of the job.
+	 */
+	static @CheckForNull HistoryRebuild get(Job<?, ?> job) {
+		return REBUILDS.get(job.getFullName());
+	}
+	
+	/**
+	 * Starts a rebuild of the job unless one is already running.
+	 */
+	static synchronized HistoryRebuild start(Job<?, ?> job, int maxHistoryLength, int historyWindowDays, boolean hashTestIds) {
+		HistoryRebuild rebuild = get(job);
+		if (rebuild != null && rebuild.isRunning()) {
+			return rebuild;
+		}
+		rebuild = new HistoryRebuild(job, maxHistoryLength, historyWindowDays, hashTestIds);
+		REBUILDS.put(job.getFullName(), rebuild);
+		Thread thread = new Thread(rebuild, "Test stability rebuild for " + job.getFullName());
+		thread.setDaemon(true);
+		thread.start();
+		return rebuild;
+	}
+	
+	@Override
+	public void run() {
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS,
+				new NamingThreadFactory(new DaemonThreadFactory(), "Test stability rebuild"));
+		if (hashTestIds) {
+			TestIdTable.get(job).startCompaction();
+		}
+		try {
+			fold(pool);
+			state = cancelled ? State.CANCELLED : State.FINISHED;
+		} catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Failed to rebuild test stability history of " + job.getFullName(), e);
+			error = e.toString();
+			state = State.FAILED;
+		} finally {
+			pool.shutdownNow();
+			if (hashTestIds) {
+				// no-op once the table was compacted
+				TestIdTable.get(job).cancelCompaction();
+			}
+		}
+	}
+	
+	private void fold(ExecutorService pool) throws InterruptedException, ExecutionException {
+		Run<?, ?> first = job.getFirstBuild();
+		Run<?, ?> last = job.getLastCompletedBuild();
+		if (first == null || last == null) {
+			return;
+		}
+		int firstNumber = first.getNumber();
+		int lastNumber = last.getNumber();
+		total = lastNumber - firstNumber + 1;
+		
+		// histories of all tests seen so far, including the ones which never failed
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		Map<String, DurationHistogram> durations = new HashMap<String, DurationHistogram>();
+		List<Future<?>> saves = new ArrayList<Future<?>>();
+		
+		// load a few builds ahead of the one being folded, but never all of them at once
+		Deque<Future<LoadedBuild>> pending = new ArrayDeque<Future<LoadedBuild>>();
+		StabilityIndex index = null;
+		int next = firstNumber;
+		while (!cancelled && (next <= lastNumber || !pending.isEmpty())) {
+			while (next <= lastNumber && pending.size() < 2 * THREADS) {
+				pending.add(pool.submit(new Load(next++)));
+			}
+			
+			LoadedBuild loaded = pending.poll().get();
+			if (loaded != null) {
+				final Run<?, ?> run = loaded.run;
+				final StabilityTestData data = foldBuild(histories, durations, loaded);
+				index = StabilityIndex.of(run.getNumber(), data.getStabilityHistories(run));
+				saves.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						replaceData(run, data);
+						return null;
+					}
+				}));
+			}
+			done++;
+		}
+		
+		for (Future<?> save : saves) {
+			if (cancelled) {
+				save.cancel(false);
+			} else {
+				save.get();
+			}
+		}
+		
+		if (index != null && !cancelled) {
+			StabilityIndex.replace(job, index);
+		}
+		if (hashTestIds && !cancelled) {
+			// only the tests of the retained builds are still referenced
+			Set<String> retained = new HashSet<String>(histories.keySet());
+			retained.addAll(durations.keySet());
+			TestIdTable.get(job).compact(job, retained);
+		}
+	}
+	
+	private StabilityTestData foldBuild(Map<String, CircularStabilityHistory> histories,
+			Map<String, DurationHistogram> durations, LoadedBuild loaded) {
+		int buildNumber = loaded.run.getNumber();
+		long timestamp = loaded.run.getTimeInMillis();
+		long historyWindowStart = historyWindowDays > 0 ? timestamp - TimeUnit.DAYS.toMillis(historyWindowDays) : 0;
+		Map<String, CircularStabilityHistory> stabilityHistoryPerTest = new HashMap<String, CircularStabilityHistory>();
+		Map<String, DurationHistogram> durationsPerTest = new HashMap<String, DurationHistogram>();
+		Map<String, StabilityRollup> rollups = new HashMap<String, StabilityRollup>();
+		Set<String> passedOnRetry = new HashSet<String>();
+		
+		for (Map.Entry<String, Outcome> e : loaded.outcomes.entrySet()) {
+			CircularStabilityHistory previous = histories.get(e.getKey());
+			CircularStabilityHistory history = previous;
+			if (history == null) {
+				history = new CircularStabilityHistory(maxHistoryLength);
+			}
+			
+			if (e.getValue().isRecorded()) {
+				history = history.append(buildNumber, !e.getValue().isFailure(), timestamp);
+			}
+			if (e.getValue() == Outcome.PASSED_ON_RETRY) {
+				passedOnRetry.add(e.getKey());
+			}
+			if (historyWindowStart > 0) {
+				history = history.withoutResultsBefore(historyWindowStart);
+			}
+			histories.put(e.getKey(), history);
+			
+			// the publisher only records tests which failed within the history
+			if (!history.isAllPassed()) {
+				stabilityHistoryPerTest.put(e.getKey(), history);
+			}
+			
+			String packageId = loaded.packages.get(e.getKey());
+			if (packageId != null) {
+				StabilityRollup.record(rollups, loaded.suiteId, packageId,
+						previous == null || previous.isAllPassed() ? null : previous, stabilityHistoryPerTest.get(e.getKey()));
+			}
+		}
+		
+		for (Map.Entry<String, Float> e : loaded.durations.entrySet()) {
+			DurationHistogram histogram = durations.get(e.getKey());
+			if (e.getValue() != null) {
+				histogram = DurationHistogram.record(histogram, e.getValue());
+				durations.put(e.getKey(), histogram);
+			}
+			if (histogram != null) {
+				durationsPerTest.put(e.getKey(), histogram);
+			}
+		}
+		
+		return StabilityTestData.create(job, stabilityHistoryPerTest, durationsPerTest, rollups, passedOnRetry,
+				maxHistoryLength, hashTestIds);
+	}
+	
+	private static void replaceData(Run<?, ?> run, StabilityTestData stabilityData) throws IOException {
+		TestResultAction action = run.getAction(TestResultAction.class);
+		if (action == null) {
+			return;
+		}
+		stabilityData.save(run);
+		List<StabilityTestData> replaced = new ArrayList<StabilityTestData>();
+		synchronized (action) {
+			List<Data> data = new ArrayList<Data>();
+			for (Data d : action.getData()) {
+				if (d instanceof StabilityTestData) {
+					replaced.add((StabilityTestData) d);
+				} else {
+					data.add(d);
+				}
+			}
+			data.add(stabilityData);
+			action.setData(data);
+		}
+		run.save();
+		for (StabilityTestData d : replaced) {
+			d.delete(run);
+		}
+	}
+	
+	void cancel() {
+		this.cancelled = true;
+	}
+	
+	public boolean isRunning() {
+		return state == State.RUNNING;
+	}
+	
+	public State getState() {
+		return state;
+	}
+	
+	public int getTotal() {
+		return total;
+	}
+	
+	public int getDone() {
+		return done;
+	}
+	
+	/**
+	 * Progress in percent, or -1 if not yet known.
+	 */
+	public int getProgress() {
+		int total = this.total;
+		return total == 0 ? -1 : 100 * done / total;
+	}
+	
+	public @CheckForNull String getError() {
+		return error;
+	}
+	
+	private static final class LoadedBuild {
+		final Run<?, ?> run;
+		final Map<String, Outcome> outcomes;
+		// durations of the test cases, null for skipped ones
+		final Map<String, Float> durations;
+		final String suiteId;
+		// package ids of the test cases
+		final Map<String, String> packages;
+		
+		LoadedBuild(Run<?, ?> run, Map<String, Outcome> outcomes, Map<String, Float> durations,
+				String suiteId, Map<String, String> packages) {
+			this.run = run;
+			this.outcomes = outcomes;
+			this.durations = durations;
+			this.suiteId = suiteId;
+			this.packages = packages;
+		}
+	}
+	
+	/**
+	 * Loads a build and the outcome of each of its classes and cases.
+	 */
+	private final class Load implements Callable<LoadedBuild> {
+		private final int number;
+		
+		Load(int number) {
+			this.number = number;
+		}
+		
+		@Override
+		public @CheckForNull LoadedBuild call() {
+			if (cancelled) {
+				return null;
+			}
+			Run<?, ?> run = job.getBuildByNumber(number);
+			if (run == null) {
+				return null;
+			}
+			TestResultAction action = run.getAction(TestResultAction.class);
+			if (action == null) {
+				return null;
+			}
+			TestResult testResult = action.getResult();
+			
+			// NB: abstract TestResult
+			Collection<hudson.tasks.test.TestResult> results = StabilityTestDataPublisher.getClassAndCaseResults(testResult);
+			Map<String, Outcome> outcomes = Outcome.collapse(results);
+			Map<String, Float> durations = new HashMap<String, Float>();
+			Map<String, String> packages = new HashMap<String, String>();
+			// NB: abstract TestResult
+			for (hudson.tasks.test.TestResult result : results) {
+				Outcome outcome = outcomes.get(result.getId());
+				// reruns are left out of the outcomes, their first run is recorded
+				if (result instanceof CaseResult && outcome != null && !durations.containsKey(result.getId())) {
+					durations.put(result.getId(), outcome == Outcome.SKIPPED ? null : result.getDuration());
+					// case -> class -> package
+					packages.put(result.getId(), result.getParent().getParent().getId());
+				}
+			}
+			return new LoadedBuild(run, outcomes, durations, testResult.getId(), packages);
+		}
+	}
+}
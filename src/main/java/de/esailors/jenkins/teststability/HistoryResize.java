@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.tasks.junit.TestResultAction;
+import hudson.tasks.junit.TestResultAction.Data;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Migrates the stored histories of a job to a new history length.
+ * <p>
+ * Only the {@link StabilityDataFile}s of the completed builds are read,
+ * resized with {@link CircularStabilityHistory#copy(int)} and written back;
+ * the JUnit results are not loaded. All jobs share one migration thread, so
+ * a changed global history length migrates the jobs one after the other.
+ * Histories kept inline in the build records of old builds are left as they
+ * are, the publisher resizes them when it reads them.
+ */
+final class HistoryResize implements Runnable {
+	
+	private static final Logger LOGGER = Logger.getLogger(HistoryResize.class.getName());
+	
+	private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(
+			new NamingThreadFactory(new DaemonThreadFactory(), "Test stability history resize"));
+	
+	// pending or running migration by job
+	private static final Map<String, Future<?>> MIGRATIONS = new ConcurrentHashMap<String, Future<?>>();
+	
+	private final Job<?, ?> job;
+	private final int maxHistoryLength;
+	
+	private HistoryResize(Job<?, ?> job, int maxHistoryLength) {
+		this.job = job;
+		this.maxHistoryLength = maxHistoryLength;
+	}
+	
+	/**
+	 * Queues the migration of the job, replacing a migration which did not start yet.
+	 */
+	static synchronized Future<?> start(Job<?, ?> job, int maxHistoryLength) {
+		Future<?> pending = MIGRATIONS.get(job.getFullName());
+		if (pending != null) {
+			pending.cancel(false);
+		}
+		Future<?> migration = EXECUTOR.submit(new HistoryResize(job, maxHistoryLength));
+		MIGRATIONS.put(job.getFullName(), migration);
+		return migration;
+	}
+	
+	/**
+	 * Returns the pending, running or last finished migration of the job.
+	 */
+	static @CheckForNull Future<?> get(Job<?, ?> job) {
+		return MIGRATIONS.get(job.getFullName());
+	}
+	
+	@Override
+	public void run() {
+		HistoryRebuild rebuild = HistoryRebuild.get(job);
+		if (rebuild != null && rebuild.isRunning()) {
+			// replaces the data of every build anyway
+			return;
+		}
+		int migrated = 0;
+		for (Run<?, ?> run : job.getBuilds()) {
+			// builds which are still finishing are saved by core, and are published with the new length anyway
+			if (run.isLogUpdated()) {
+				continue;
+			}
+			try {
+				if (resize(run)) {
+					migrated++;
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to resize the test stability history of " + run, e);
+			}
+		}
+		LOGGER.log(Level.FINE, "Resized the test stability histories of {0} builds of {1} to {2}",
+				new Object[] { migrated, job.getFullName(), maxHistoryLength });
+	}
+	
+	private boolean resize(Run<?, ?> run) throws IOException {
+		TestResultAction action = run.getAction(TestResultAction.class);
+		if (action == null) {
+			return false;
+		}
+		List<Data> data;
+		synchronized (action) {
+			data = new ArrayList<Data>(action.getData());
+		}
+		boolean changed = false;
+		for (Data d : data) {
+			if (d instanceof StabilityTestData && ((StabilityTestData) d).resize(run, maxHistoryLength)) {
+				changed = true;
+			}
+		}
+		if (changed) {
+			// only for the history length recorded with the data, the histories are in their own files
+			run.save();
+		}
+		return changed;
+	}
+	
+	/**
+	 * Migrates the histories of all builds of a job once a build was published
+	 * with another history length than the build before, instead of resizing
+	 * them one by one whenever a test is published.
+	 */
+	@Extension
+	public static final class Listener extends RunListener<Run<?, ?>> {
+		
+		@Override
+		public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
+			StabilityTestData data = StabilityTestData.of(run);
+			if (data == null || data.getMaxHistoryLength() == 0) {
+				return;
+			}
+			StabilityTestData previous = StabilityTestData.of(run.getPreviousCompletedBuild());
+			if (previous == null || previous.getMaxHistoryLength() == 0
+					|| previous.getMaxHistoryLength() == data.getMaxHistoryLength()) {
+				return;
+			}
+			
+			listener.getLogger().println("Test stability history length changed from " + previous.getMaxHistoryLength()
+					+ " to " + data.getMaxHistoryLength() + ", migrating the histories of all builds");
+			start(run.getParent(), data.getMaxHistoryLength());
+		}
+	}
+}
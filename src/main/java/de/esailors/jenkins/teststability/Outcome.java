@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.ClassResult;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome of a test within one build.
+ * <p>
+ * Test runners which rerun failing tests (eg the Gradle test retry plugin)
+ * may report such a test as several <code>testcase</code> elements per build.
+ * The reruns are collapsed into one outcome, so that each build adds at most
+ * one result to the history of a test and a test which failed and then passed
+ * is explicitly flagged as flaky.
+ * <p>
+ * Surefire's <code>rerunFailingTestsCount</code> reports a single
+ * <code>testcase</code> with <code>flakyFailure</code> children instead,
+ * which junit does not expose; such a test is recorded with its final outcome.
+ * 
+ * @see #collapse(Collection)
+ */
+enum Outcome {
+	PASSED, FAILED, PASSED_ON_RETRY, SKIPPED;
+	
+	// NB: abstract TestResult
+	static Outcome of(hudson.tasks.test.TestResult result) {
+		if (result.isPassed()) {
+			return PASSED;
+		} else if (result.getFailCount() > 0) {
+			return FAILED;
+		}
+		return SKIPPED;
+	}
+	
+	/**
+	 * The outcome of a test with this outcome and another run of it.
+	 */
+	Outcome rerun(Outcome other) {
+		if (this == other || other == SKIPPED) {
+			return this;
+		} else if (this == SKIPPED) {
+			return other;
+		} else if (this == FAILED && other == FAILED) {
+			return FAILED;
+		}
+		// failed at least once and passed at least once
+		return PASSED_ON_RETRY;
+	}
+	
+	/**
+	 * Whether the build adds a result to the history of the test.
+	 */
+	boolean isRecorded() {
+		return this != SKIPPED;
+	}
+	
+	/**
+	 * Whether the result is recorded as a failure. A test which only passed on
+	 * retry failed in this build as well.
+	 */
+	boolean isFailure() {
+		return this == FAILED || this == PASSED_ON_RETRY;
+	}
+	
+	/**
+	 * The outcome of a class given the collapsed outcome of one of its cases.
+	 */
+	private Outcome withCase(Outcome other) {
+		if (this == FAILED || other == FAILED) {
+			return FAILED;
+		} else if (this == PASSED_ON_RETRY || other == PASSED_ON_RETRY) {
+			return PASSED_ON_RETRY;
+		} else if (this == PASSED || other == PASSED) {
+			return PASSED;
+		}
+		return SKIPPED;
+	}
+	
+	/**
+	 * Collapses the reruns of the given class and case results into one
+	 * outcome per test, in order of their first occurrence. Reruns are
+	 * recorded under the id of the first run of the test; the ids of the
+	 * other runs are left out. Classes fail if one of their cases failed,
+	 * even on retry.
+	 */
+	// NB: abstract TestResult
+	static Map<String, Outcome> collapse(Collection<hudson.tasks.test.TestResult> results) {
+		Map<String, Outcome> outcomes = new LinkedHashMap<String, Outcome>(results.size() * 4 / 3 + 1);
+		// id of the first run by class and case name
+		Map<String, String> firstRuns = new HashMap<String, String>(results.size() * 4 / 3 + 1);
+		for (hudson.tasks.test.TestResult result : results) {
+			if (result instanceof ClassResult) {
+				// placeholder, see below
+				outcomes.put(result.getId(), SKIPPED);
+				continue;
+			}
+			String id = firstRuns.get(getRunKey(result));
+			if (id == null) {
+				id = result.getId();
+				firstRuns.put(getRunKey(result), id);
+			}
+			Outcome outcome = outcomes.get(id);
+			outcomes.put(id, outcome == null ? of(result) : outcome.rerun(of(result)));
+		}
+		
+		for (hudson.tasks.test.TestResult result : results) {
+			if (result instanceof ClassResult) {
+				Outcome outcome = SKIPPED;
+				for (CaseResult caseResult : ((ClassResult) result).getChildren()) {
+					Outcome caseOutcome = outcomes.get(firstRuns.get(getRunKey(caseResult)));
+					if (caseOutcome != null) {
+						outcome = outcome.withCase(caseOutcome);
+					}
+				}
+				outcomes.put(result.getId(), outcome);
+			}
+		}
+		return outcomes;
+	}
+	
+	/**
+	 * Identifies the runs of a test case. Their ids can't be used, as junit
+	 * makes the names of cases with the same name unique (eg <code>test_2</code>).
+	 */
+	// NB: abstract TestResult
+	private static String getRunKey(hudson.tasks.test.TestResult result) {
+		if (result instanceof CaseResult) {
+			CaseResult caseResult = (CaseResult) result;
+			return caseResult.getClassName() + '\n' + caseResult.getName();
+		}
+		return result.getId();
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.TransientActionFactory;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Build level {@link Action} exporting the test stability history of a build.
+ */
+public class StabilityBuildAction implements Action {
+	
+	private final Run<?, ?> run;
+	
+	public StabilityBuildAction(Run<?, ?> run) {
+		this.run = run;
+	}
+	
+	public Run<?, ?> getRun() {
+		return this.run;
+	}
+	
+	/**
+	 * Streams the stability of the tracked tests of this build as JSON.
+	 * 
+	 * @see StabilityExport
+	 */
+	public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		if (StabilityTestData.of(run) == null) {
+			rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		// the data of a build only changes if its history is rebuilt, which saves the build
+		StabilityExport.serve(req, rsp, run.getNumber(),
+				run.getNumber() + "-" + new File(run.getRootDir(), "build.xml").lastModified(),
+				visitor -> {
+					for (Map.Entry<String, CircularStabilityHistory> e : StabilityTestData.getAllStabilityHistories(run).entrySet()) {
+						CircularStabilityHistory history = e.getValue();
+						StabilityTestAction action = new StabilityTestAction(history);
+						visitor.visit(e.getKey(), action.getFlakiness(), action.getStability(),
+								action.getFailed(), action.getTotal(), history.getLastFailure(), history.getUnstableSince());
+					}
+				});
+	}
+	
+	public String getIconFileName() {
+		return null;
+	}
+	
+	public String getDisplayName() {
+		return "Test stability";
+	}
+	
+	public String getUrlName() {
+		return "test-stability";
+	}
+	
+	@Extension
+	public static class Factory extends TransientActionFactory<Run> {
+		
+		@Override
+		public Class<Run> type() {
+			return Run.class;
+		}
+		
+		@Override
+		public Class<StabilityBuildAction> actionType() {
+			// createFor looks up other actions of the target, which must not end up here again
+			return StabilityBuildAction.class;
+		}
+		
+		@Override
+		public @Nonnull Collection<? extends Action> createFor(@Nonnull Run target) {
+			if (StabilityTestData.of(target) == null) {
+				return Collections.emptyList();
+			}
+			return Collections.singletonList(new StabilityBuildAction(target));
+		}
+	}
+}
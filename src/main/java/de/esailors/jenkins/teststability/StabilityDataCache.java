@@ -0,0 +1,267 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.ManagementLink;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * Controller-wide cache of decoded {@link StabilityDataFile}s, keyed by job,
+ * build number and file name.
+ * <p>
+ * Holds at most <code>de.esailors.jenkins.teststability.StabilityDataCache.size</code>
+ * builds (100 by default) in least recently used order. Entries are soft
+ * references, so the data of cold jobs is released under heap pressure even
+ * before it falls out of the cache. The counters are shown on the
+ * <i>Test stability cache</i> management page.
+ */
+@Extension
+public class StabilityDataCache extends ManagementLink {
+	
+	static final int SIZE = SystemProperties.getInteger(StabilityDataCache.class.getName() + ".size", 100);
+	
+	private static final ReferenceQueue<StabilityDataFile> COLLECTED = new ReferenceQueue<StabilityDataFile>();
+	
+	// access ordered, so the eldest entry is the least recently used one
+	private static final Map<String, Entry> CACHE = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			if (size() > SIZE) {
+				EVICTIONS.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+	
+	private static final AtomicLong HITS = new AtomicLong();
+	private static final AtomicLong MISSES = new AtomicLong();
+	private static final AtomicLong EVICTIONS = new AtomicLong();
+	private static final AtomicLong COLLECTIONS = new AtomicLong();
+	
+	private static final class Entry extends SoftReference<StabilityDataFile> {
+		final String key;
+		
+		Entry(String key, StabilityDataFile data) {
+			super(data, COLLECTED);
+			this.key = key;
+		}
+	}
+	
+	private static String key(Run<?, ?> run, String fileName) {
+		return run.getParent().getFullName() + "#" + run.getNumber() + "/" + fileName;
+	}
+	
+	/**
+	 * Returns the data stored in the given file of the build, reading it on a miss.
+	 */
+	static StabilityDataFile get(Run<?, ?> run, String fileName) throws IOException {
+		String key = key(run, fileName);
+		synchronized (CACHE) {
+			expungeCollected();
+			Entry entry = CACHE.get(key);
+			StabilityDataFile data = entry != null ? entry.get() : null;
+			if (data != null) {
+				HITS.incrementAndGet();
+				return data;
+			}
+		}
+		MISSES.incrementAndGet();
+		// read outside of the lock, concurrent misses of the same build just read twice
+		StabilityDataFile data = StabilityDataFile.read(new File(run.getRootDir(), fileName));
+		put(run, fileName, data);
+		return data;
+	}
+	
+	/**
+	 * Caches the data just written to the given file of the build.
+	 */
+	static void put(Run<?, ?> run, String fileName, StabilityDataFile data) {
+		String key = key(run, fileName);
+		synchronized (CACHE) {
+			expungeCollected();
+			CACHE.put(key, new Entry(key, data));
+		}
+	}
+	
+	// removes the entries whose data was released by the garbage collector
+	private static void expungeCollected() {
+		Entry collected;
+		while ((collected = (Entry) COLLECTED.poll()) != null) {
+			// the key may already be cached again with new data
+			if (CACHE.get(collected.key) == collected) {
+				CACHE.remove(collected.key);
+				COLLECTIONS.incrementAndGet();
+			}
+		}
+	}
+	
+	// drops the entries whose key starts with the given prefix
+	private static void removeAll(String prefix) {
+		synchronized (CACHE) {
+			CACHE.keySet().removeIf(key -> key.startsWith(prefix));
+		}
+	}
+	
+	static void clear() {
+		synchronized (CACHE) {
+			CACHE.clear();
+		}
+	}
+	
+	public int getSize() {
+		synchronized (CACHE) {
+			expungeCollected();
+			return CACHE.size();
+		}
+	}
+	
+	/**
+	 * Number of cached builds whose data has not been released yet.
+	 */
+	public int getLiveSize() {
+		int live = 0;
+		synchronized (CACHE) {
+			for (Entry entry : CACHE.values()) {
+				if (entry.get() != null) {
+					live++;
+				}
+			}
+		}
+		return live;
+	}
+	
+	public int getMaxSize() {
+		return SIZE;
+	}
+	
+	public long getHits() {
+		return HITS.get();
+	}
+	
+	public long getMisses() {
+		return MISSES.get();
+	}
+	
+	/**
+	 * Entries dropped as least recently used because the cache was full.
+	 */
+	public long getEvictions() {
+		return EVICTIONS.get();
+	}
+	
+	/**
+	 * Entries dropped because the garbage collector released their data.
+	 */
+	public long getCollections() {
+		return COLLECTIONS.get();
+	}
+	
+	@RequirePOST
+	public HttpResponse doClear() {
+		Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+		clear();
+		return HttpResponses.redirectToDot();
+	}
+	
+	@Override
+	public @CheckForNull String getIconFileName() {
+		return "graph.png";
+	}
+	
+	@Override
+	public String getDisplayName() {
+		return "Test stability cache";
+	}
+	
+	@Override
+	public String getDescription() {
+		return "Usage of the cache of test stability data loaded from builds.";
+	}
+	
+	@Override
+	public String getUrlName() {
+		return "test-stability-cache";
+	}
+	
+	@Override
+	public Category getCategory() {
+		return Category.STATUS;
+	}
+	
+	/**
+	 * Drops the data of deleted and renamed jobs, so a job created under the
+	 * same name never sees it.
+	 */
+	@Extension
+	public static class ItemListenerImpl extends ItemListener {
+		
+		@Override
+		public void onDeleted(Item item) {
+			removeAll(item.getFullName() + "#");
+			// jobs in a deleted folder
+			removeAll(item.getFullName() + "/");
+		}
+		
+		@Override
+		public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+			removeAll(oldFullName + "#");
+		}
+	}
+	
+	/**
+	 * Drops the data of deleted builds.
+	 */
+	@Extension
+	public static class RunListenerImpl extends RunListener<Run<?, ?>> {
+		
+		@Override
+		public void onDeleted(Run<?, ?> run) {
+			removeAll(run.getParent().getFullName() + "#" + run.getNumber() + "/");
+		}
+	}
+}
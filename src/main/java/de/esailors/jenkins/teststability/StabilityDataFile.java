@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The stability data of a build, stored in <code>test-stability.bin</code> in
+ * the build directory. Builds publishing test results several times (eg
+ * pipelines with several <code>junit</code> steps) get one file per
+ * {@link StabilityTestData}, see {@link #claimFileName(File)}.
+ * <p>
+ * Written once when the data is published (or rebuilt) and read on demand, so
+ * saving the build record does not rewrite it. The file starts with a magic
+ * number, a format version and whether the keys are {@link TestIdTable} keys,
+ * followed by the histories and the durations, each as a count and then
+ * key/value pairs. Keys are either 64-bit {@link TestIdTable} keys or test ids.
+ */
+final class StabilityDataFile {
+	
+	static final String FILE_NAME = "test-stability.bin";
+	
+	// "TSTB"
+	private static final int MAGIC = 0x54535442;
+	private static final int VERSION = 3;
+	
+	// whether the maps are keyed by TestIdTable keys (Long) instead of test ids (String)
+	final boolean hashedKeys;
+	final Map<?, CircularStabilityHistory> stability;
+	final Map<?, DurationHistogram> durations;
+	
+	StabilityDataFile(Map<String, CircularStabilityHistory> stability, Map<String, DurationHistogram> durations) {
+		this(false, stability, durations);
+	}
+	
+	private StabilityDataFile(boolean hashedKeys, Map<?, CircularStabilityHistory> stability,
+			Map<?, DurationHistogram> durations) {
+		this.hashedKeys = hashedKeys;
+		this.stability = stability;
+		this.durations = durations;
+	}
+	
+	/**
+	 * Data keyed by {@link TestIdTable} keys.
+	 */
+	static StabilityDataFile hashed(Map<Long, CircularStabilityHistory> stability, Map<Long, DurationHistogram> durations) {
+		return new StabilityDataFile(true, stability, durations);
+	}
+	
+	/**
+	 * Returns this data with all histories resized to the given length.
+	 */
+	StabilityDataFile resize(int maxHistoryLength) {
+		Map<Object, CircularStabilityHistory> resized = new HashMap<Object, CircularStabilityHistory>(stability.size() * 4 / 3 + 1);
+		for (Map.Entry<?, CircularStabilityHistory> e : stability.entrySet()) {
+			resized.put(e.getKey(), e.getValue().copy(maxHistoryLength));
+		}
+		return new StabilityDataFile(hashedKeys, resized, durations);
+	}
+	
+	/**
+	 * The file of the first data published for a build.
+	 */
+	static File getFile(File buildDir) {
+		return new File(buildDir, FILE_NAME);
+	}
+	
+	/**
+	 * Creates an empty file for new data in the build directory and returns its name.
+	 */
+	static String claimFileName(File buildDir) throws IOException {
+		if (new File(buildDir, FILE_NAME).createNewFile()) {
+			return FILE_NAME;
+		}
+		for (int i = 2; ; i++) {
+			String name = "test-stability-" + i + ".bin";
+			// atomic, so concurrently published data never shares a file
+			if (new File(buildDir, name).createNewFile()) {
+				return name;
+			}
+		}
+	}
+	
+	/**
+	 * Writes the data to the given file, replacing it atomically.
+	 */
+	void write(File target) throws IOException {
+		Path file = target.toPath();
+		Path tmp = Files.createTempFile(file.getParent(), target.getName(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeBoolean(hashedKeys);
+				out.writeInt(stability.size());
+				for (Map.Entry<?, CircularStabilityHistory> e : stability.entrySet()) {
+					writeKey(out, e.getKey());
+					e.getValue().writeTo(out);
+				}
+				out.writeInt(durations.size());
+				for (Map.Entry<?, DurationHistogram> e : durations.entrySet()) {
+					writeKey(out, e.getKey());
+					e.getValue().writeTo(out);
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+	
+	/**
+	 * Reads the data of the given file.
+	 */
+	static StabilityDataFile read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a test stability file: " + file);
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported test stability file version " + version + ": " + file);
+			}
+			
+			boolean hashedKeys = in.readBoolean();
+			int histories = in.readInt();
+			Map<Object, CircularStabilityHistory> stability = new HashMap<Object, CircularStabilityHistory>(histories * 4 / 3 + 1);
+			for (int i = 0; i < histories; i++) {
+				stability.put(readKey(in, hashedKeys), CircularStabilityHistory.readFrom(in));
+			}
+			int durationCount = in.readInt();
+			Map<Object, DurationHistogram> durations = new HashMap<Object, DurationHistogram>(durationCount * 4 / 3 + 1);
+			for (int i = 0; i < durationCount; i++) {
+				durations.put(readKey(in, hashedKeys), DurationHistogram.readFrom(in));
+			}
+			return new StabilityDataFile(hashedKeys, stability, durations);
+		}
+	}
+	
+	static StabilityDataFile empty() {
+		return new StabilityDataFile(Collections.<String, CircularStabilityHistory>emptyMap(),
+				Collections.<String, DurationHistogram>emptyMap());
+	}
+	
+	// test ids as length prefixed UTF-8, as DataOutput.writeUTF is limited to 64k
+	private void writeKey(DataOutput out, Object key) throws IOException {
+		if (hashedKeys) {
+			out.writeLong((Long) key);
+			return;
+		}
+		byte[] bytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static Object readKey(DataInput in, boolean hashedKeys) throws IOException {
+		if (hashedKeys) {
+			return in.readLong();
+		}
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
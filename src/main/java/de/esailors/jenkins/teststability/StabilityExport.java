@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.annotation.CheckForNull;
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Streams the stability of tracked tests as JSON.
+ * <p>
+ * Tests are written to the response one by one instead of building a JSON
+ * tree first. Responses carry an ETag, so clients polling with
+ * <code>If-None-Match</code> get a 304 until new stability data is published.
+ * <p>
+ * The tests can be filtered with the <code>minFlakiness</code>,
+ * <code>maxStability</code> and <code>prefix</code> query parameters.
+ */
+final class StabilityExport implements StabilityIndex.EntryVisitor {
+	
+	private final Writer out;
+	private final int minFlakiness;
+	private final int maxStability;
+	private final @CheckForNull String prefix;
+	private boolean first = true;
+	
+	private StabilityExport(Writer out, StaplerRequest req) {
+		this.out = out;
+		this.minFlakiness = getInt(req.getParameter("minFlakiness"), 0);
+		this.maxStability = getInt(req.getParameter("maxStability"), 100);
+		this.prefix = req.getParameter("prefix");
+	}
+	
+	/**
+	 * Writes the tests passed to the {@link Body} unless the client already has
+	 * the response with the given ETag.
+	 */
+	static void serve(StaplerRequest req, StaplerResponse rsp, int buildNumber, String etag, Body body) throws IOException {
+		String query = req.getQueryString();
+		if (query != null) {
+			// filtered responses differ
+			etag += "-" + Integer.toHexString(query.hashCode());
+		}
+		String quoted = "\"" + etag + "\"";
+		rsp.setHeader("ETag", quoted);
+		if (quoted.equals(req.getHeader("If-None-Match"))) {
+			rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		
+		rsp.setContentType("application/json;charset=UTF-8");
+		Writer out = rsp.getWriter();
+		out.write("{\"build\":" + buildNumber + ",\"tests\":[");
+		body.write(new StabilityExport(out, req));
+		out.write("]}");
+		out.flush();
+	}
+	
+	@Override
+	public void visit(String id, int flakiness, int stability, int failed, int total, int lastFailure, int unstableSince) throws IOException {
+		if (flakiness < minFlakiness || stability > maxStability) {
+			return;
+		}
+		if (prefix != null && !id.startsWith(prefix)) {
+			return;
+		}
+		
+		if (!first) {
+			out.write(',');
+		}
+		first = false;
+		out.write("{\"id\":");
+		writeString(id);
+		out.write(",\"flakiness\":" + flakiness
+				+ ",\"stability\":" + stability
+				+ ",\"failed\":" + failed
+				+ ",\"total\":" + total
+				+ ",\"lastFailure\":" + lastFailure
+				+ ",\"unstableSince\":" + unstableSince + "}");
+	}
+	
+	private void writeString(String s) throws IOException {
+		out.write('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			default:
+				if (c < 0x20) {
+					out.write(String.format("\\u%04x", (int) c));
+				} else {
+					out.write(c);
+				}
+			}
+		}
+		out.write('"');
+	}
+	
+	static int getInt(@CheckForNull String value, int defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Passes the tests to export to the {@link StabilityIndex.EntryVisitor}.
+	 */
+	interface Body {
+		void write(StabilityIndex.EntryVisitor visitor) throws IOException;
+	}
+}
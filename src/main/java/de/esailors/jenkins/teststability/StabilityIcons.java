@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.model.HealthReport;
+
+import org.jvnet.localizer.Localizable;
+
+/**
+ * Health icon URLs by flakiness.
+ * <p>
+ * Test report pages render an icon for every test, so the URLs are resolved
+ * once per flakiness instead of creating a {@link HealthReport} for each of
+ * them.
+ */
+final class StabilityIcons {
+	
+	// by health score, i.e. 100 - flakiness; filled on first use
+	private static final String[] SMALL = new String[101];
+	private static final String[] BIG = new String[101];
+	
+	private StabilityIcons() {
+	}
+	
+	static String getSmallImagePath(int flakiness) {
+		return get(SMALL, flakiness, "16x16");
+	}
+	
+	static String getBigImagePath(int flakiness) {
+		return get(BIG, flakiness, "32x32");
+	}
+	
+	private static String get(String[] urls, int flakiness, String size) {
+		int score = 100 - Math.max(0, Math.min(100, flakiness));
+		String url = urls[score];
+		if (url == null) {
+			// concurrent callers resolve the same URL
+			url = new HealthReport(score, (Localizable) null).getIconUrl(size);
+			urls[score] = url;
+		}
+		return url;
+	}
+}
@@ -0,0 +1,559 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.model.Job;
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Per-job summary of all tracked tests of the latest build with stability data.
+ * <p>
+ * Written to <code>test-stability-index.txt</code> in the job directory by the
+ * publisher, so the job level report never needs to load builds. Entries are
+ * stored in parallel arrays; the orders used by the report are sorted once per
+ * index and then paged through.
+ */
+public final class StabilityIndex {
+	
+	private static final Logger LOGGER = Logger.getLogger(StabilityIndex.class.getName());
+	
+	static final String FILE_NAME = "test-stability-index.txt";
+	private static final String HEADER = "# test stability index v2";
+	
+	// loaded indexes; entries go away together with their job
+	private static final Map<Job<?, ?>, StabilityIndex> INDEXES = new WeakHashMap<Job<?, ?>, StabilityIndex>();
+	// held while saving the index of a job, guarded by INDEXES
+	private static final Map<Job<?, ?>, Object> SAVE_LOCKS = new WeakHashMap<Job<?, ?>, Object>();
+	
+	/**
+	 * The orders the report can be sorted by.
+	 */
+	public enum Sort {
+		FLAKINESS, STABILITY, FAILED, LAST_FAILURE, UNSTABLE_SINCE
+	}
+	
+	private final int buildNumber;
+	// when the index was computed
+	private long timestamp = System.currentTimeMillis();
+	private final String[] ids;
+	private final byte[] flakiness;
+	private final byte[] stability;
+	private final int[] failed;
+	private final int[] total;
+	private final int[] lastFailure;
+	private final int[] unstableSince;
+	
+	// lazily sorted positions per Sort
+	private final int[][] orders = new int[Sort.values().length][];
+	
+	private StabilityIndex(int buildNumber, int size) {
+		this.buildNumber = buildNumber;
+		this.ids = new String[size];
+		this.flakiness = new byte[size];
+		this.stability = new byte[size];
+		this.failed = new int[size];
+		this.total = new int[size];
+		this.lastFailure = new int[size];
+		this.unstableSince = new int[size];
+	}
+	
+	/**
+	 * Computes the index of the given build's stability histories.
+	 */
+	static StabilityIndex of(int buildNumber, Map<String, CircularStabilityHistory> histories) {
+		StabilityIndex index = new StabilityIndex(buildNumber, histories.size());
+		int i = 0;
+		for (Map.Entry<String, CircularStabilityHistory> e : histories.entrySet()) {
+			CircularStabilityHistory history = e.getValue();
+			StabilityTestAction action = new StabilityTestAction(history);
+			index.ids[i] = e.getKey();
+			index.flakiness[i] = (byte) action.getFlakiness();
+			index.stability[i] = (byte) action.getStability();
+			index.failed[i] = action.getFailed();
+			index.total[i] = action.getTotal();
+			index.lastFailure[i] = history.getLastFailure();
+			index.unstableSince[i] = history.getUnstableSince();
+			i++;
+		}
+		return index;
+	}
+	
+	/**
+	 * Returns the index of the job, loading it from disk if needed.
+	 * 
+	 * @return <code>null</code> if the job has no index yet
+	 */
+	static @CheckForNull StabilityIndex get(Job<?, ?> job) {
+		synchronized (INDEXES) {
+			StabilityIndex index = INDEXES.get(job);
+			if (index != null) {
+				return index;
+			}
+		}
+		StabilityIndex loaded = load(getFile(job));
+		if (loaded != null) {
+			synchronized (INDEXES) {
+				StabilityIndex index = INDEXES.get(job);
+				if (index != null && index.buildNumber >= loaded.buildNumber) {
+					return index;
+				}
+				INDEXES.put(job, loaded);
+			}
+		}
+		return loaded;
+	}
+	
+	/**
+	 * Whether the job has an index, without loading it.
+	 */
+	static boolean exists(Job<?, ?> job) {
+		synchronized (INDEXES) {
+			if (INDEXES.containsKey(job)) {
+				return true;
+			}
+		}
+		return getFile(job).exists();
+	}
+	
+	/**
+	 * Returns the index of the job like {@link #get(Job)}, but does not keep
+	 * it in memory if it has to be loaded from disk.
+	 * 
+	 * @return <code>null</code> if the job has no index yet
+	 */
+	static @CheckForNull StabilityIndex peek(Job<?, ?> job) {
+		synchronized (INDEXES) {
+			StabilityIndex index = INDEXES.get(job);
+			if (index != null) {
+				return index;
+			}
+		}
+		return load(getFile(job));
+	}
+	
+	/**
+	 * Replaces the index of the job unless it already has one of a newer build.
+	 * An index of the same build is merged, as builds may publish test results
+	 * several times (eg pipelines with several <code>junit</code> steps).
+	 * 
+	 * @return the index of the job
+	 */
+	static StabilityIndex update(Job<?, ?> job, StabilityIndex index) {
+		return store(job, index, true);
+	}
+	
+	/**
+	 * Replaces the index of the job unless it already has one of a newer build,
+	 * dropping the tests of an index of the same build.
+	 */
+	static void replace(Job<?, ?> job, StabilityIndex index) {
+		store(job, index, false);
+	}
+	
+	private static StabilityIndex store(Job<?, ?> job, StabilityIndex index, boolean merge) {
+		// loads the stored index outside of the lock
+		StabilityIndex stored = get(job);
+		Object saveLock;
+		synchronized (INDEXES) {
+			StabilityIndex current = INDEXES.get(job);
+			if (current == null) {
+				current = stored;
+			}
+			if (current != null && current.buildNumber > index.buildNumber) {
+				return current;
+			}
+			if (merge && current != null && current.buildNumber == index.buildNumber) {
+				index = current.merge(index);
+			}
+			INDEXES.put(job, index);
+			saveLock = SAVE_LOCKS.computeIfAbsent(job, j -> new Object());
+		}
+		// saves of other jobs do not wait for this one
+		synchronized (saveLock) {
+			synchronized (INDEXES) {
+				if (INDEXES.get(job) != index) {
+					// replaced by the index of a newer build or a merge, which is saved by its own store
+					return index;
+				}
+			}
+			try {
+				index.save(getFile(job));
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to save test stability index of " + job.getFullName(), e);
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Returns an index of the entries of both indexes, the given one taking
+	 * precedence for tests in both.
+	 */
+	StabilityIndex merge(StabilityIndex other) {
+		Map<String, Integer> positions = new HashMap<String, Integer>(ids.length * 4 / 3 + 1);
+		for (int i = 0; i < ids.length; i++) {
+			positions.put(ids[i], i);
+		}
+		int shared = 0;
+		for (String id : other.ids) {
+			if (positions.containsKey(id)) {
+				shared++;
+			}
+		}
+		StabilityIndex merged = new StabilityIndex(buildNumber, ids.length + other.ids.length - shared);
+		for (int i = 0; i < ids.length; i++) {
+			copy(this, i, merged, i);
+		}
+		int size = ids.length;
+		for (int i = 0; i < other.ids.length; i++) {
+			Integer position = positions.get(other.ids[i]);
+			copy(other, i, merged, position != null ? position : size++);
+		}
+		return merged;
+	}
+	
+	private static void copy(StabilityIndex from, int i, StabilityIndex to, int position) {
+		to.ids[position] = from.ids[i];
+		to.flakiness[position] = from.flakiness[i];
+		to.stability[position] = from.stability[i];
+		to.failed[position] = from.failed[i];
+		to.total[position] = from.total[i];
+		to.lastFailure[position] = from.lastFailure[i];
+		to.unstableSince[position] = from.unstableSince[i];
+	}
+	
+	private static File getFile(Job<?, ?> job) {
+		return new File(job.getRootDir(), FILE_NAME);
+	}
+	
+	private void save(File file) throws IOException {
+		AtomicFileWriter w = new AtomicFileWriter(file.toPath(), StandardCharsets.UTF_8);
+		try {
+			write(w);
+			w.commit();
+		} finally {
+			w.abort();
+		}
+	}
+	
+	private void write(Writer w) throws IOException {
+		w.write(HEADER);
+		w.write("\nbuild\t" + buildNumber + "\t" + ids.length + "\n");
+		for (int i = 0; i < ids.length; i++) {
+			w.write(flakiness[i] + "\t" + stability[i] + "\t" + failed[i] + "\t" + total[i] + "\t" + lastFailure[i] + "\t" + unstableSince[i] + "\t");
+			w.write(ids[i]);
+			w.write('\n');
+		}
+	}
+	
+	private static @CheckForNull StabilityIndex load(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			// other versions are recomputed from the latest build
+			if (!HEADER.equals(r.readLine())) {
+				return null;
+			}
+			String[] build = r.readLine().split("\t");
+			StabilityIndex index = new StabilityIndex(Integer.parseInt(build[1]), Integer.parseInt(build[2]));
+			for (int i = 0; i < index.ids.length; i++) {
+				// the id is last as it may contain anything but line breaks
+				String[] entry = r.readLine().split("\t", 7);
+				index.flakiness[i] = Byte.parseByte(entry[0]);
+				index.stability[i] = Byte.parseByte(entry[1]);
+				index.failed[i] = Integer.parseInt(entry[2]);
+				index.total[i] = Integer.parseInt(entry[3]);
+				index.lastFailure[i] = Integer.parseInt(entry[4]);
+				index.unstableSince[i] = Integer.parseInt(entry[5]);
+				index.ids[i] = entry[6];
+			}
+			index.timestamp = file.lastModified();
+			return index;
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Failed to load test stability index " + file, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * The build the index was computed for.
+	 */
+	public int getBuildNumber() {
+		return buildNumber;
+	}
+	
+	/**
+	 * When the index was computed, in milliseconds.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	/**
+	 * Number of tests with at least the given flakiness in percent.
+	 */
+	int countFlaky(int minFlakiness) {
+		int count = 0;
+		for (byte f : flakiness) {
+			if (f >= minFlakiness) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Number of tests per 20% of stability, the last element counts the tests with 100% stability.
+	 */
+	int[] getStabilityDistribution() {
+		int[] distribution = new int[6];
+		for (byte s : stability) {
+			distribution[s / 20]++;
+		}
+		return distribution;
+	}
+	
+	/**
+	 * Passes all entries to the visitor, in no particular order.
+	 */
+	void forEach(EntryVisitor visitor) throws IOException {
+		for (int i = 0; i < ids.length; i++) {
+			visitor.visit(ids[i], flakiness[i], stability[i], failed[i], total[i], lastFailure[i], unstableSince[i]);
+		}
+	}
+	
+	/**
+	 * Receives the entries of a {@link StabilityIndex}.
+	 */
+	interface EntryVisitor {
+		void visit(String id, int flakiness, int stability, int failed, int total, int lastFailure, int unstableSince) throws IOException;
+	}
+	
+	/**
+	 * Number of tracked tests.
+	 */
+	public int size() {
+		return ids.length;
+	}
+	
+	/**
+	 * Returns the entries at <code>[offset, offset + limit)</code> of the given
+	 * order, only counting tests whose id contains <code>filter</code>.
+	 */
+	public Page query(Sort sort, @CheckForNull String filter, int offset, int limit) {
+		int[] order = getOrder(sort);
+		if (filter == null || filter.isEmpty()) {
+			List<Entry> entries = new ArrayList<Entry>();
+			for (int i = offset; i < order.length && i < offset + limit; i++) {
+				entries.add(new Entry(order[i]));
+			}
+			return new Page(sort, filter, entries, order.length, offset, limit);
+		}
+		
+		List<Entry> entries = new ArrayList<Entry>(Math.min(limit, order.length));
+		int matches = 0;
+		for (int i : order) {
+			if (!ids[i].contains(filter)) {
+				continue;
+			}
+			if (matches >= offset && entries.size() < limit) {
+				entries.add(new Entry(i));
+			}
+			matches++;
+		}
+		return new Page(sort, filter, entries, matches, offset, limit);
+	}
+	
+	private int[] getOrder(Sort sort) {
+		synchronized (orders) {
+			int[] order = orders[sort.ordinal()];
+			if (order == null) {
+				order = sort(comparator(sort));
+				orders[sort.ordinal()] = order;
+			}
+			return order;
+		}
+	}
+	
+	private Comparator<Integer> comparator(Sort sort) {
+		switch (sort) {
+		case STABILITY:
+			// least stable first
+			return (a, b) -> Integer.compare(stability[a], stability[b]);
+		case FAILED:
+			return (a, b) -> Integer.compare(failed[b], failed[a]);
+		case LAST_FAILURE:
+			return (a, b) -> Integer.compare(lastFailure[b], lastFailure[a]);
+		case UNSTABLE_SINCE:
+			// most recently became unstable first, stable tests last
+			return (a, b) -> Integer.compare(unstableSince[b], unstableSince[a]);
+		case FLAKINESS:
+		default:
+			return (a, b) -> Integer.compare(flakiness[b], flakiness[a]);
+		}
+	}
+	
+	private int[] sort(Comparator<Integer> comparator) {
+		Integer[] boxed = new Integer[ids.length];
+		for (int i = 0; i < boxed.length; i++) {
+			boxed[i] = i;
+		}
+		// stable, so ties keep the order of the ids
+		Arrays.sort(boxed, comparator.thenComparing((a, b) -> ids[a].compareTo(ids[b])));
+		int[] order = new int[boxed.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = boxed[i];
+		}
+		return order;
+	}
+	
+	/**
+	 * A tracked test.
+	 */
+	public final class Entry {
+		private final int i;
+		
+		private Entry(int i) {
+			this.i = i;
+		}
+		
+		public String getId() {
+			return ids[i];
+		}
+		
+		public int getFlakiness() {
+			return flakiness[i];
+		}
+		
+		public int getStability() {
+			return stability[i];
+		}
+		
+		public int getFailed() {
+			return failed[i];
+		}
+		
+		public int getTotal() {
+			return total[i];
+		}
+		
+		/**
+		 * Number of the last build in which the test failed, 0 if unknown.
+		 */
+		public int getLastFailure() {
+			return lastFailure[i];
+		}
+		
+		/**
+		 * Number of the build since which the test is unstable, 0 if it is considered stable.
+		 */
+		public int getUnstableSince() {
+			return unstableSince[i];
+		}
+	}
+	
+	/**
+	 * A page of a query.
+	 */
+	public static final class Page {
+		private final Sort sort;
+		private final String filter;
+		private final List<Entry> entries;
+		private final int matches;
+		private final int offset;
+		private final int limit;
+		
+		Page(Sort sort, @CheckForNull String filter, List<Entry> entries, int matches, int offset, int limit) {
+			this.sort = sort;
+			this.filter = filter;
+			this.entries = entries;
+			this.matches = matches;
+			this.offset = offset;
+			this.limit = limit;
+		}
+		
+		public Sort getSort() {
+			return sort;
+		}
+		
+		public @CheckForNull String getFilter() {
+			return filter;
+		}
+		
+		public List<Entry> getEntries() {
+			return Collections.unmodifiableList(entries);
+		}
+		
+		/**
+		 * Number of tests matching the filter.
+		 */
+		public int getMatches() {
+			return matches;
+		}
+		
+		public int getOffset() {
+			return offset;
+		}
+		
+		public int getLimit() {
+			return limit;
+		}
+		
+		public boolean hasPrevious() {
+			return offset > 0;
+		}
+		
+		public boolean hasNext() {
+			return offset + limit < matches;
+		}
+		
+		public int getPreviousOffset() {
+			return Math.max(0, offset - limit);
+		}
+		
+		public int getNextOffset() {
+			return offset + limit;
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import hudson.model.listeners.ItemListener;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.CheckForNull;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Per-job flakiness aggregates in the Prometheus text format.
+ * <p>
+ * The aggregates are updated by {@link StabilityTestDataPublisher} whenever a
+ * build is published, so a scrape of <code>/test-stability-metrics/</code>
+ * only reads counters. Jobs which did not publish since the controller
+ * started are seeded from their stored {@link StabilityIndex} on the first
+ * scrape, without the publish timings and heap estimate.
+ */
+@Extension
+public class StabilityMetrics implements RootAction {
+	
+	// a test counts as flaky from this flakiness on
+	static final int FLAKY_THRESHOLD = 1;
+	
+	// labels of the buckets of StabilityIndex#getStabilityDistribution()
+	private static final String[] STABILITY_BUCKETS = { "0-19", "20-39", "40-59", "60-79", "80-99", "100" };
+	
+	private static final Map<String, JobMetrics> METRICS = new ConcurrentHashMap<String, JobMetrics>();
+	
+	// jobs whose stored index was already looked at
+	private static final Set<String> SEEDED = ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Records the aggregates of a publish of the given job.
+	 * 
+	 * @param index the index of the job after the publish, covering all publishes of the build
+	 * @param histories the histories of this publish
+	 * @param durations the durations of this publish
+	 */
+	static void recordPublish(Job<?, ?> job, StabilityIndex index, Map<String, CircularStabilityHistory> histories,
+			Map<String, DurationHistogram> durations, long publishNanos) {
+		long bytes = estimateHeapBytes(histories, durations);
+		final JobMetrics update = new JobMetrics(index.getBuildNumber(), index.countFlaky(FLAKY_THRESHOLD),
+				index.getStabilityDistribution(), index.size(), bytes, publishNanos / 1e9);
+		METRICS.compute(job.getFullName(), (name, previous) -> update.after(previous));
+	}
+	
+	/**
+	 * Returns the aggregates of the job, seeding them from its stored index
+	 * if the job did not publish since the controller started.
+	 */
+	private static @CheckForNull JobMetrics get(Job<?, ?> job) {
+		String name = job.getFullName();
+		JobMetrics metrics = METRICS.get(name);
+		if (metrics != null || !SEEDED.add(name)) {
+			return metrics;
+		}
+		final StabilityIndex index = StabilityIndex.peek(job);
+		if (index == null) {
+			return null;
+		}
+		// a publish in the meantime takes precedence
+		return METRICS.computeIfAbsent(name, n -> new JobMetrics(index));
+	}
+	
+	/**
+	 * Estimated heap size of the data of a publish, as laid out on a 64 bit JVM
+	 * with compressed references.
+	 */
+	static long estimateHeapBytes(Map<String, CircularStabilityHistory> histories,
+			Map<String, DurationHistogram> durations) {
+		// the storage of a history may be shared with other histories
+		Set<Object> counted = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		long bytes = 0;
+		for (Map.Entry<String, CircularStabilityHistory> e : histories.entrySet()) {
+			bytes += estimateEntryBytes(e.getKey()) + e.getValue().estimateHeapBytes(counted);
+		}
+		for (Map.Entry<String, DurationHistogram> e : durations.entrySet()) {
+			bytes += estimateEntryBytes(e.getKey()) + e.getValue().estimateHeapBytes();
+		}
+		return bytes;
+	}
+	
+	// map node and table slot, plus the id as a Latin-1 string
+	private static long estimateEntryBytes(String id) {
+		return 32 + 8 + 24 + 16 + id.length();
+	}
+	
+	/**
+	 * Time spent publishing the latest build of the job in seconds, -1 if unknown.
+	 */
+	static double getLastPublishSeconds(Job<?, ?> job) {
+		JobMetrics metrics = METRICS.get(job.getFullName());
+		return metrics == null ? -1 : metrics.lastPublishSeconds;
+	}
+	
+	/**
+	 * Estimated heap size of the histories and durations of the latest build of the job, -1 if unknown.
+	 */
+	static long getHistoryBytes(Job<?, ?> job) {
+		JobMetrics metrics = METRICS.get(job.getFullName());
+		return metrics == null ? -1 : metrics.historyBytes;
+	}
+	
+	public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		// sorted for stable output
+		Map<String, JobMetrics> visible = new TreeMap<String, JobMetrics>();
+		// only the jobs readable by the caller
+		for (Job<?, ?> job : Jenkins.get().allItems(Job.class)) {
+			JobMetrics metrics = get(job);
+			if (metrics != null) {
+				visible.put(job.getFullName(), metrics);
+			}
+		}
+		
+		rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		PrintWriter w = rsp.getWriter();
+		
+		header(w, "flaky_tests", "gauge", "Number of tracked tests with a flakiness above 0% in the latest published build.");
+		for (Map.Entry<String, JobMetrics> e : visible.entrySet()) {
+			sample(w, "flaky_tests", e.getKey(), null, e.getValue().flakyTests);
+		}
+		
+		header(w, "tests", "gauge", "Number of tracked tests per stability bucket in percent.");
+		for (Map.Entry<String, JobMetrics> e : visible.entrySet()) {
+			for (int i = 0; i < STABILITY_BUCKETS.length; i++) {
+				sample(w, "tests", e.getKey(), "stability=\"" + STABILITY_BUCKETS[i] + "\"",
+						e.getValue().stabilityDistribution[i]);
+			}
+		}
+		
+		header(w, "tracked_histories", "gauge", "Number of test histories stored with the latest published build.");
+		for (Map.Entry<String, JobMetrics> e : visible.entrySet()) {
+			sample(w, "tracked_histories", e.getKey(), null, e.getValue().histories);
+		}
+		
+		header(w, "tracked_history_bytes", "gauge", "Estimated heap size of the test histories and durations of the latest published build.");
+		for (Map.Entry<String, JobMetrics> e : visible.entrySet()) {
+			if (e.getValue().historyBytes >= 0) {
+				sample(w, "tracked_history_bytes", e.getKey(), null, e.getValue().historyBytes);
+			}
+		}
+		
+		header(w, "publish_seconds", "summary", "Time spent computing the test stability of a build.");
+		for (Map.Entry<String, JobMetrics> e : visible.entrySet()) {
+			sample(w, "publish_seconds_sum", e.getKey(), null, e.getValue().publishSecondsSum);
+			sample(w, "publish_seconds_count", e.getKey(), null, e.getValue().publishCount);
+		}
+		
+		header(w, "last_publish_seconds", "gauge", "Time spent computing the test stability of the latest published build.");
+		for (Map.Entry<String, JobMetrics> e : visible.entrySet()) {
+			if (e.getValue().lastPublishSeconds >= 0) {
+				sample(w, "last_publish_seconds", e.getKey(), null, e.getValue().lastPublishSeconds);
+			}
+		}
+		w.flush();
+	}
+	
+	private static void header(PrintWriter w, String name, String type, String help) {
+		w.print("# HELP jenkins_test_stability_" + name + " " + help + "\n");
+		w.print("# TYPE jenkins_test_stability_" + name + " " + type + "\n");
+	}
+	
+	private static void sample(PrintWriter w, String name, String job, String labels, double value) {
+		w.print("jenkins_test_stability_" + name + "{job=\"" + escape(job) + "\"");
+		if (labels != null) {
+			w.print("," + labels);
+		}
+		w.print("} ");
+		if (value == Math.rint(value) && !Double.isInfinite(value)) {
+			w.print((long) value);
+		} else {
+			w.print(value);
+		}
+		w.print("\n");
+	}
+	
+	private static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+	
+	public String getIconFileName() {
+		return null;
+	}
+	
+	public String getDisplayName() {
+		return "Test stability metrics";
+	}
+	
+	public String getUrlName() {
+		return "test-stability-metrics";
+	}
+	
+	/**
+	 * Aggregates of a job, replaced on every publish.
+	 * <p>
+	 * Aggregates seeded from a stored index have no publishes, and -1 as heap
+	 * estimate and time of the last publish.
+	 */
+	private static final class JobMetrics {
+		final int buildNumber;
+		final int flakyTests;
+		final int[] stabilityDistribution;
+		final int histories;
+		// of all publishes of the build
+		long historyBytes;
+		final double lastPublishSeconds;
+		double publishSecondsSum;
+		long publishCount;
+		
+		JobMetrics(int buildNumber, int flakyTests, int[] stabilityDistribution, int histories, long historyBytes,
+				double publishSeconds) {
+			this.buildNumber = buildNumber;
+			this.flakyTests = flakyTests;
+			this.stabilityDistribution = stabilityDistribution;
+			this.histories = histories;
+			this.historyBytes = historyBytes;
+			this.lastPublishSeconds = publishSeconds;
+			this.publishSecondsSum = publishSeconds;
+			this.publishCount = 1;
+		}
+		
+		JobMetrics(StabilityIndex index) {
+			this.buildNumber = index.getBuildNumber();
+			this.flakyTests = index.countFlaky(FLAKY_THRESHOLD);
+			this.stabilityDistribution = index.getStabilityDistribution();
+			this.histories = index.size();
+			this.historyBytes = -1;
+			this.lastPublishSeconds = -1;
+		}
+		
+		JobMetrics after(JobMetrics previous) {
+			if (previous != null) {
+				this.publishSecondsSum += previous.publishSecondsSum;
+				this.publishCount += previous.publishCount;
+				if (previous.buildNumber == buildNumber && previous.historyBytes >= 0) {
+					// an earlier junit step of the same build
+					this.historyBytes += previous.historyBytes;
+				}
+			}
+			return this;
+		}
+	}
+	
+	/**
+	 * Keeps the metrics in line with renamed and deleted jobs.
+	 */
+	@Extension
+	public static class Listener extends ItemListener {
+		
+		@Override
+		public void onDeleted(Item item) {
+			METRICS.remove(item.getFullName());
+			SEEDED.remove(item.getFullName());
+		}
+		
+		@Override
+		public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+			SEEDED.remove(oldFullName);
+			JobMetrics metrics = METRICS.remove(oldFullName);
+			if (metrics != null) {
+				METRICS.put(newFullName, metrics);
+			}
+		}
+	}
+
+}
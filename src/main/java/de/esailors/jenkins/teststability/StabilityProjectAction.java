@@ -0,0 +1,309 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.Jenkins;
+import jenkins.model.TransientActionFactory;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * Job level {@link Action} for the test stability history.
+ */
+public class StabilityProjectAction implements Action {
+	
+	static final int TOP_TESTS = 50;
+	static final int PAGE_SIZE = 50;
+	static final int MAX_PAGE_SIZE = 1000;
+	
+	// builds without test results (e.g. broken builds) to skip when looking for the latest data
+	private static final int MAX_BUILDS_TO_SEARCH = 10;
+	
+	private final Job<?, ?> job;
+	
+	public StabilityProjectAction(Job<?, ?> job) {
+		this.job = job;
+	}
+	
+	public Job<?, ?> getJob() {
+		return this.job;
+	}
+	
+	/**
+	 * The running or last finished history rebuild of this job.
+	 */
+	public @CheckForNull HistoryRebuild getRebuild() {
+		return HistoryRebuild.get(job);
+	}
+	
+	/**
+	 * The index of the tracked tests of the latest build with stability data.
+	 */
+	public @CheckForNull StabilityIndex getIndex() {
+		StabilityIndex index = StabilityIndex.get(job);
+		if (index == null) {
+			// recorded before the index existed, compute it once from the latest build
+			Run<?, ?> run = getLastRunWithData();
+			if (run != null) {
+				index = StabilityIndex.update(job,
+						StabilityIndex.of(run.getNumber(), StabilityTestData.getAllStabilityHistories(run)));
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * The page of the report requested by the <code>sort</code>, <code>filter</code>,
+	 * <code>start</code> and <code>size</code> query parameters.
+	 */
+	public @CheckForNull StabilityIndex.Page getReport() {
+		StabilityIndex index = getIndex();
+		if (index == null) {
+			return null;
+		}
+		StaplerRequest req = Stapler.getCurrentRequest();
+		StabilityIndex.Sort sort = getSort(req.getParameter("sort"));
+		int start = Math.max(0, StabilityExport.getInt(req.getParameter("start"), 0));
+		int size = Math.min(MAX_PAGE_SIZE, Math.max(1, StabilityExport.getInt(req.getParameter("size"), PAGE_SIZE)));
+		return index.query(sort, req.getParameter("filter"), start, size);
+	}
+	
+	public StabilityIndex.Sort[] getSorts() {
+		return StabilityIndex.Sort.values();
+	}
+	
+	private static StabilityIndex.Sort getSort(@CheckForNull String sort) {
+		if (sort != null) {
+			for (StabilityIndex.Sort s : StabilityIndex.Sort.values()) {
+				if (s.name().equalsIgnoreCase(sort)) {
+					return s;
+				}
+			}
+		}
+		return StabilityIndex.Sort.FLAKINESS;
+	}
+	
+	/**
+	 * Streams the stability of the tracked tests of the latest build as JSON.
+	 * 
+	 * @see StabilityExport
+	 */
+	public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		StabilityIndex index = getIndex();
+		if (index == null) {
+			rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		StabilityExport.serve(req, rsp, index.getBuildNumber(),
+				index.getBuildNumber() + "-" + index.getTimestamp(), index::forEach);
+	}
+	
+	/**
+	 * The slowest test cases of the last build with stability data, slowest first.
+	 */
+	public List<TestDuration> getSlowestTests() {
+		return getTopDurations(new Comparator<TestDuration>() {
+			@Override
+			public int compare(TestDuration a, TestDuration b) {
+				return Float.compare(a.histogram.getLastDuration(), b.histogram.getLastDuration());
+			}
+		});
+	}
+	
+	/**
+	 * The test cases of the last build with stability data whose duration
+	 * grew the most compared to their recent median, most regressed first.
+	 */
+	public List<TestDuration> getMostRegressedTests() {
+		return getTopDurations(new Comparator<TestDuration>() {
+			@Override
+			public int compare(TestDuration a, TestDuration b) {
+				return Float.compare(a.histogram.getRegression(), b.histogram.getRegression());
+			}
+		});
+	}
+	
+	private List<TestDuration> getTopDurations(Comparator<TestDuration> order) {
+		Run<?, ?> run = getLastRunWithData();
+		if (run == null) {
+			return Collections.emptyList();
+		}
+		
+		// keeps the TOP_TESTS largest elements, smallest at the head
+		PriorityQueue<TestDuration> top = new PriorityQueue<TestDuration>(TOP_TESTS + 1, order);
+		// of all junit steps of the build
+		for (Map.Entry<String, DurationHistogram> e : StabilityTestData.getAllDurations(run).entrySet()) {
+			top.add(new TestDuration(e.getKey(), e.getValue()));
+			if (top.size() > TOP_TESTS) {
+				top.poll();
+			}
+		}
+		
+		List<TestDuration> result = new ArrayList<TestDuration>(top);
+		Collections.sort(result, Collections.reverseOrder(order));
+		return result;
+	}
+	
+	private @CheckForNull Run<?, ?> getLastRunWithData() {
+		Run<?, ?> run = job.getLastCompletedBuild();
+		for (int i = 0; run != null && i < MAX_BUILDS_TO_SEARCH; i++) {
+			if (StabilityTestData.of(run) != null) {
+				return run;
+			}
+			run = run.getPreviousCompletedBuild();
+		}
+		return null;
+	}
+	
+	@RequirePOST
+	public HttpResponse doRebuild() {
+		job.checkPermission(Item.CONFIGURE);
+		StabilityTestDataPublisher.DescriptorImpl descriptor =
+				Jenkins.get().getDescriptorByType(StabilityTestDataPublisher.DescriptorImpl.class);
+		int maxHistoryLength;
+		StabilityTestDataPublisher publisher = StabilityTestDataPublisher.of(job);
+		if (publisher != null) {
+			maxHistoryLength = publisher.getEffectiveMaxHistoryLength();
+		} else {
+			// pipelines configure the publisher in their script, only their builds know the length
+			StabilityTestData last = StabilityTestData.of(getLastRunWithData());
+			maxHistoryLength = last != null && last.getMaxHistoryLength() > 0
+					? last.getMaxHistoryLength() : descriptor.getMaxHistoryLength();
+		}
+		HistoryRebuild.start(job, maxHistoryLength, descriptor.getHistoryWindowDays(), descriptor.isHashTestIds());
+		return HttpResponses.redirectToDot();
+	}
+	
+	@RequirePOST
+	public HttpResponse doCancelRebuild() {
+		job.checkPermission(Item.CONFIGURE);
+		HistoryRebuild rebuild = getRebuild();
+		if (rebuild != null) {
+			rebuild.cancel();
+		}
+		return HttpResponses.redirectToDot();
+	}
+	
+	public String getIconFileName() {
+		return "graph.png";
+	}
+	
+	public String getDisplayName() {
+		return "Test stability";
+	}
+	
+	public String getUrlName() {
+		return "test-stability";
+	}
+	
+	/**
+	 * Durations of a test case.
+	 */
+	public static class TestDuration {
+		private final String id;
+		private final DurationHistogram histogram;
+		
+		TestDuration(String id, DurationHistogram histogram) {
+			this.id = id;
+			this.histogram = histogram;
+		}
+		
+		public String getId() {
+			return id;
+		}
+		
+		public DurationHistogram getHistogram() {
+			return histogram;
+		}
+		
+		public String getLastDuration() {
+			return formatSeconds(histogram.getLastDuration());
+		}
+		
+		public String getMedian() {
+			return formatSeconds(histogram.getMedian());
+		}
+		
+		public String getP90() {
+			return formatSeconds(histogram.getP90());
+		}
+		
+		public String getRegression() {
+			return String.format(Locale.ENGLISH, "%.1fx", histogram.getRegression());
+		}
+		
+		private static String formatSeconds(float seconds) {
+			return String.format(Locale.ENGLISH, "%.3fs", seconds);
+		}
+	}
+	
+	@Extension
+	public static class Factory extends TransientActionFactory<Job> {
+		
+		@Override
+		public Class<Job> type() {
+			return Job.class;
+		}
+		
+		@Override
+		public Class<StabilityProjectAction> actionType() {
+			// lookups of other actions, eg the TestResultAction in createFor, skip this factory
+			return StabilityProjectAction.class;
+		}
+		
+		@Override
+		public @Nonnull Collection<? extends Action> createFor(@Nonnull Job target) {
+			// data recorded before the index existed is only found in the builds
+			if (!StabilityIndex.exists(target) && StabilityTestData.of(target.getLastCompletedBuild()) == null) {
+				return Collections.emptyList();
+			}
+			return Collections.singletonList(new StabilityProjectAction(target));
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Stability of all test cases of a package or of a whole test result.
+ * <p>
+ * Accumulated by the publisher while it walks the test cases and stored with
+ * the build, so package and suite pages do not need to visit their children.
+ * Not modified once the build is published.
+ */
+public class StabilityRollup {
+	
+	private int tests;
+	private int unstableTests;
+	private long totalFlakiness;
+	private int maxFlakiness;
+	private int newlyUnstableTests;
+	
+	/**
+	 * Adds a test case to the rollups of its package and of the whole test result.
+	 * 
+	 * @param previous the history of the test in the previous build, if any
+	 * @param history the history of the test in this build, <code>null</code> if it never failed within the history
+	 */
+	static void record(Map<String, StabilityRollup> rollups, String suiteId, String packageId,
+			@CheckForNull CircularStabilityHistory previous, @CheckForNull CircularStabilityHistory history) {
+		int flakiness = 0;
+		int stability = 100;
+		boolean newlyUnstable = false;
+		if (history != null) {
+			StabilityTestAction action = new StabilityTestAction(history);
+			flakiness = action.getFlakiness();
+			stability = action.getStability();
+			newlyUnstable = history.getUnstableSince() > 0 && (previous == null || previous.getUnstableSince() == 0);
+		}
+		get(rollups, suiteId).add(flakiness, stability, newlyUnstable);
+		get(rollups, packageId).add(flakiness, stability, newlyUnstable);
+	}
+	
+	private static StabilityRollup get(Map<String, StabilityRollup> rollups, String id) {
+		StabilityRollup rollup = rollups.get(id);
+		if (rollup == null) {
+			rollup = new StabilityRollup();
+			rollups.put(id, rollup);
+		}
+		return rollup;
+	}
+	
+	private void add(int flakiness, int stability, boolean newlyUnstable) {
+		tests++;
+		if (stability < 100) {
+			unstableTests++;
+		}
+		totalFlakiness += flakiness;
+		maxFlakiness = Math.max(maxFlakiness, flakiness);
+		if (newlyUnstable) {
+			newlyUnstableTests++;
+		}
+	}
+	
+	/**
+	 * Number of test cases.
+	 */
+	public int getTests() {
+		return tests;
+	}
+	
+	/**
+	 * Number of test cases which failed within their history.
+	 */
+	public int getUnstableTests() {
+		return unstableTests;
+	}
+	
+	/**
+	 * Share of the test cases which failed within their history in percent.
+	 */
+	public int getUnstablePercentage() {
+		return tests == 0 ? 0 : (int) (100L * unstableTests / tests);
+	}
+	
+	public float getMeanFlakiness() {
+		return tests == 0 ? 0 : (float) totalFlakiness / tests;
+	}
+	
+	public int getMaxFlakiness() {
+		return maxFlakiness;
+	}
+	
+	/**
+	 * Number of test cases flagged as unstable by this build.
+	 * 
+	 * @see CircularStabilityHistory#getUnstableSince()
+	 */
+	public int getNewlyUnstableTests() {
+		return newlyUnstableTests;
+	}
+	
+	public String getDescription() {
+		return String.format(Locale.ENGLISH,
+				"%d of %d tests failed recently (%d%%). Flakiness: mean %.1f%%, max %d%%. Newly unstable: %d",
+				unstableTests, tests, getUnstablePercentage(), getMeanFlakiness(), maxFlakiness, newlyUnstableTests);
+	}
+}
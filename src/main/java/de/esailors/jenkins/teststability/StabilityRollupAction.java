@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.tasks.junit.TestAction;
+
+/**
+ * {@link TestAction} showing the {@link StabilityRollup} of a package or of a whole test result.
+ */
+class StabilityRollupAction extends TestAction {
+	
+	private final StabilityRollup rollup;
+	
+	StabilityRollupAction(StabilityRollup rollup) {
+		this.rollup = rollup;
+	}
+	
+	public StabilityRollup getRollup() {
+		return rollup;
+	}
+	
+	public String getDescription() {
+		return rollup.getDescription();
+	}
+	
+	public String getBigImagePath() {
+		return StabilityIcons.getBigImagePath(rollup.getMaxFlakiness());
+	}
+	
+	public String getSmallImagePath() {
+		return StabilityIcons.getSmallImagePath(rollup.getMaxFlakiness());
+	}
+	
+	public String getIconFileName() {
+		return null;
+	}
+	
+	public String getDisplayName() {
+		return null;
+	}
+	
+	public String getUrlName() {
+		return null;
+	}
+}
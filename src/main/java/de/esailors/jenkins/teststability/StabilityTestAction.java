@@ -23,13 +23,11 @@
  */
 package de.esailors.jenkins.teststability;
 
-import javax.annotation.CheckForNull;
+import java.util.Locale;
 
-import org.jvnet.localizer.Localizable;
+import javax.annotation.CheckForNull;
 
-import hudson.model.HealthReport;
 import hudson.tasks.junit.TestAction;
-import de.esailors.jenkins.teststability.StabilityTestData.Result;
 
 /**
  * {@link TestAction} for the test stability history.
@@ -38,7 +36,14 @@ import de.esailors.jenkins.teststability.StabilityTestData.Result;
  */
 class StabilityTestAction extends TestAction {
 
+	private static final String STABLE_DESCRIPTION = "No known failures. Flakiness 0%, Stability 100%";
+	
+	// badge of the tests without a history, ie most rows of a test report: root URL and markup
+	private static volatile String[] stableBadge;
+
 	private CircularStabilityHistory ringBuffer;
+	private DurationHistogram durations;
+	// built on first use, many actions are only created for their numbers
 	private String description;
 	
 	private int total;
@@ -46,48 +51,70 @@ class StabilityTestAction extends TestAction {
 	private int testStatusChanges;
 	private int stability = 100;
 	private int flakiness;
+	private int unstableSince;
+	private boolean passedOnRetry;
 
 	public StabilityTestAction(@CheckForNull CircularStabilityHistory ringBuffer) {
+		this(ringBuffer, null);
+	}
+
+	public StabilityTestAction(@CheckForNull CircularStabilityHistory ringBuffer, @CheckForNull DurationHistogram durations) {
+		this(ringBuffer, durations, false);
+	}
+
+	public StabilityTestAction(@CheckForNull CircularStabilityHistory ringBuffer, @CheckForNull DurationHistogram durations,
+			boolean passedOnRetry) {
 		this.ringBuffer = ringBuffer;
+		this.durations = durations;
+		this.passedOnRetry = passedOnRetry;
 
 		if (ringBuffer != null) {
-			Result[] data = ringBuffer.getData();
-			this.total = data.length;
+			this.total = ringBuffer.size();
 		
-			computeStability(data);
-			computeFlakiness(data);
+			computeStability(ringBuffer);
+			computeFlakiness(ringBuffer);
+			this.unstableSince = ringBuffer.getUnstableSince();
 		}
-				
+	}
+	
+	private String describe() {
+		String description;
 		if (this.stability == 100) {
-			this.description = "No known failures. Flakiness 0%, Stability 100%";
+			description = STABLE_DESCRIPTION;
 		} else {
-			this.description =
+			description =
 				String.format("Failed %d times in the last %d runs. Flakiness: %d%%, Stability: %d%%", failed, total, flakiness, stability);
 		}
+		if (this.unstableSince > 0) {
+			description += ". Unstable since build #" + unstableSince;
+		}
+		if (passedOnRetry) {
+			description += ". Passed on retry in this build";
+		}
+		return description;
 	}
 	
-	private void computeStability(Result[] data) {
+	private void computeStability(CircularStabilityHistory history) {
 		
-		for (Result r : data) {
-			if (!r.passed) {
+		for (int i = 0; i < total; i++) {
+			if (!history.isPassed(i)) {
 				failed++;
 			}
 		}
 		
-		this.stability = 100 * (total - failed) / total;
+		if (total > 0) {
+			this.stability = 100 * (total - failed) / total;
+		}
 	}
 	
 	/**
 	 * Computes the flakiness in percent.
 	 */
-	private void computeFlakiness(Result[] data) {
-		Boolean previousPassed = null;
-		for (Result r : this.ringBuffer.getData()) {
-			boolean thisPassed = r.passed;
-			if (previousPassed != null && previousPassed != thisPassed) {
+	private void computeFlakiness(CircularStabilityHistory history) {
+		for (int i = 1; i < total; i++) {
+			if (history.isPassed(i - 1) != history.isPassed(i)) {
 				testStatusChanges++;
 			}
-			previousPassed = thisPassed;
 		}
 		
 		if (total > 1) {
@@ -105,14 +132,59 @@ class StabilityTestAction extends TestAction {
 		return this.stability;
 	}
 
+	/**
+	 * Number of failures within the history.
+	 */
+	public int getFailed() {
+		return this.failed;
+	}
+
+	/**
+	 * Number of results within the history.
+	 */
+	public int getTotal() {
+		return this.total;
+	}
+
+	/**
+	 * Number of the build since which the test fails more often than it used to,
+	 * 0 if it is considered stable.
+	 */
+	public int getUnstableSince() {
+		return this.unstableSince;
+	}
+
+	/**
+	 * Whether the test failed and then passed on retry in this build.
+	 */
+	public boolean isPassedOnRetry() {
+		return this.passedOnRetry;
+	}
+
 	public String getBigImagePath() {
-		HealthReport healthReport = new HealthReport(100 - flakiness, (Localizable)null);
-		return healthReport.getIconUrl("32x32");
+		return StabilityIcons.getBigImagePath(flakiness);
 	}
 	
 	public String getSmallImagePath() {
-		HealthReport healthReport = new HealthReport(100 - flakiness, (Localizable)null);
-		return healthReport.getIconUrl("16x16");
+		return StabilityIcons.getSmallImagePath(flakiness);
+	}
+
+	/**
+	 * Markup of the badge shown next to the test in test reports. Actions are
+	 * created per lookup, so only the badge of the tests without a history is
+	 * built once and shared.
+	 */
+	public String getBadgeHtml(String rootURL) {
+		boolean stable = ringBuffer == null && !passedOnRetry;
+		String[] cached = stable ? stableBadge : null;
+		if (cached != null && cached[0].equals(rootURL)) {
+			return cached[1];
+		}
+		String html = "<img src='" + rootURL + getSmallImagePath() + "'/> <span>(" + getDescription() + ")</span>";
+		if (stable) {
+			stableBadge = new String[] { rootURL, html };
+		}
+		return html;
 	}
 
 	public CircularStabilityHistory getRingBuffer() {
@@ -120,8 +192,32 @@ class StabilityTestAction extends TestAction {
 		return this.ringBuffer;
 	}
 
+	/**
+	 * Recent durations of the test case, <code>null</code> for classes and for
+	 * builds recorded before durations were tracked.
+	 */
+	public @CheckForNull DurationHistogram getDurations() {
+		return this.durations;
+	}
+
+	/**
+	 * Summary of the recent durations, <code>null</code> if not known.
+	 */
+	public @CheckForNull String getDurationDescription() {
+		if (durations == null) {
+			return null;
+		}
+		return String.format(Locale.ENGLISH, "Duration: %.3fs, median of recent runs: %.3fs, 90th percentile: %.3fs",
+				durations.getLastDuration(), durations.getMedian(), durations.getP90());
+	}
+
 	public String getDescription() {
-		return this.description;
+		String description = this.description;
+		if (description == null) {
+			description = describe();
+			this.description = description;
+		}
+		return description;
 	}
 	
 	public String getIconFileName() {
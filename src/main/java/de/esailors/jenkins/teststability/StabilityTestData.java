@@ -26,17 +26,36 @@ package de.esailors.jenkins.teststability;
 import hudson.tasks.junit.ClassResult;
 import hudson.tasks.junit.TestAction;
 import hudson.tasks.junit.TestObject;
+import hudson.tasks.junit.PackageResult;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.tasks.junit.TestResultAction;
 import hudson.tasks.junit.TestResultAction.Data;
 import hudson.tasks.junit.CaseResult;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
 
 import jenkins.model.Jenkins;
 
 /**
  * {@link Data} for the test stability history.
+ * <p>
+ * The histories are stored in a {@link StabilityDataFile} next to the build
+ * record and read through the {@link StabilityDataCache} when needed; the
+ * build record only holds this reference.
+ * Builds recorded before keep their histories inline.
  * 
  * @author ckutz
  */
@@ -48,33 +67,358 @@ class StabilityTestData extends Data {
 		Jenkins.XSTREAM2.aliasType("circularStabilityHistory", CircularStabilityHistory.class);
 	}
 	
+	private static final Logger LOGGER = Logger.getLogger(StabilityTestData.class.getName());
+	
+	// inline data of builds recorded before it moved to the StabilityDataFile, null otherwise
 	private final Map<String,CircularStabilityHistory> stability;
 	
+	// whether the maps are keyed by TestIdTable keys, false for builds recorded with plain test ids
+	private final boolean hashedIds;
+	
+	// whether the data is stored in a StabilityDataFile of the build
+	private final boolean inFile;
+	
+	// name of that file, assigned when saved; null for StabilityDataFile.FILE_NAME in builds recorded before
+	// a build could have several
+	private String fileName;
+	
+	// rollups of the packages and of the whole test result by id, null for builds recorded before rollups
+	private final Map<String, StabilityRollup> rollups;
+	
+	// history length of the stored histories, 0 if unknown; changed when the job is migrated by a HistoryResize
+	private int maxHistoryLength;
+	
+	// tests which failed and passed on retry in this build, null for builds recorded before reruns were collapsed
+	// or with hashed ids
+	private final Set<String> passedOnRetry;
+	
+	// their TestIdTable keys if the ids are hashed, null otherwise
+	private final long[] passedOnRetryKeys;
+	
+	// inline data, or data which is not saved yet; saved data is read through the StabilityDataCache
+	private transient volatile StabilityDataFile contents;
+	
 	public StabilityTestData(Map<String, CircularStabilityHistory> stabilityHistory) {
 		this.stability = stabilityHistory;
+		this.hashedIds = false;
+		this.inFile = false;
+		this.rollups = null;
+		this.maxHistoryLength = 0;
+		this.passedOnRetry = null;
+		this.passedOnRetryKeys = null;
+	}
+	
+	private StabilityTestData(StabilityDataFile contents, Map<String, StabilityRollup> rollups,
+			@CheckForNull Set<String> passedOnRetry, @CheckForNull long[] passedOnRetryKeys, int maxHistoryLength) {
+		this.stability = null;
+		this.hashedIds = contents.hashedKeys;
+		this.inFile = true;
+		this.contents = contents;
+		this.rollups = rollups;
+		this.passedOnRetry = passedOnRetry;
+		this.passedOnRetryKeys = passedOnRetryKeys;
+		this.maxHistoryLength = maxHistoryLength;
+	}
+	
+	/**
+	 * Creates the data of a build of the given job from maps keyed by test id.
+	 * With <code>hashIds</code> the ids are replaced by the keys of the job's
+	 * {@link TestIdTable}. The data has to be written with {@link #save(Run)}
+	 * before the build is saved.
+	 */
+	static StabilityTestData create(Job<?, ?> job, Map<String, CircularStabilityHistory> stabilityHistory,
+			Map<String, DurationHistogram> durations, Map<String, StabilityRollup> rollups, Set<String> passedOnRetry,
+			int maxHistoryLength, boolean hashIds) {
+		if (!hashIds) {
+			return new StabilityTestData(new StabilityDataFile(stabilityHistory, durations), rollups,
+					passedOnRetry, null, maxHistoryLength);
+		}
+		TestIdTable table = TestIdTable.get(job);
+		Map<Long, CircularStabilityHistory> hashedStability = new HashMap<Long, CircularStabilityHistory>(stabilityHistory.size() * 4 / 3 + 1);
+		for (Map.Entry<String, CircularStabilityHistory> e : stabilityHistory.entrySet()) {
+			hashedStability.put(table.register(e.getKey()), e.getValue());
+		}
+		Map<Long, DurationHistogram> hashedDurations = new HashMap<Long, DurationHistogram>(durations.size() * 4 / 3 + 1);
+		for (Map.Entry<String, DurationHistogram> e : durations.entrySet()) {
+			hashedDurations.put(table.register(e.getKey()), e.getValue());
+		}
+		long[] hashedPassedOnRetry = new long[passedOnRetry.size()];
+		int i = 0;
+		for (String id : passedOnRetry) {
+			hashedPassedOnRetry[i++] = table.register(id);
+		}
+		table.save(job);
+		return new StabilityTestData(StabilityDataFile.hashed(hashedStability, hashedDurations), rollups,
+				null, hashedPassedOnRetry, maxHistoryLength);
+	}
+	
+	/**
+	 * The history length of the stored histories, 0 if unknown.
+	 */
+	int getMaxHistoryLength() {
+		return maxHistoryLength;
+	}
+	
+	/**
+	 * Writes the data to its own file in the directory of the given build.
+	 */
+	void save(Run<?, ?> run) throws IOException {
+		StabilityDataFile data = contents;
+		if (inFile && data != null) {
+			if (fileName == null) {
+				fileName = StabilityDataFile.claimFileName(run.getRootDir());
+			}
+			data.write(new File(run.getRootDir(), fileName));
+			StabilityDataCache.put(run, fileName, data);
+			contents = null;
+		}
+	}
+	
+	/**
+	 * Resizes the histories in the file of this data to the given length.
+	 * The build has to be saved if this returns <code>true</code>.
+	 */
+	boolean resize(Run<?, ?> run, int maxHistoryLength) throws IOException {
+		if (!inFile || contents != null || this.maxHistoryLength == maxHistoryLength) {
+			return false;
+		}
+		File file = new File(run.getRootDir(), getFileName());
+		// not through the cache, which holds empty data for files that failed to load
+		StabilityDataFile resizedData = StabilityDataFile.read(file).resize(maxHistoryLength);
+		resizedData.write(file);
+		StabilityDataCache.put(run, getFileName(), resizedData);
+		this.maxHistoryLength = maxHistoryLength;
+		return true;
+	}
+	
+	/**
+	 * Deletes the file of data which was replaced.
+	 */
+	void delete(Run<?, ?> run) throws IOException {
+		if (inFile && contents == null) {
+			Files.deleteIfExists(new File(run.getRootDir(), getFileName()).toPath());
+		}
+	}
+	
+	private String getFileName() {
+		return fileName != null ? fileName : StabilityDataFile.FILE_NAME;
+	}
+	
+	private StabilityDataFile getContents(@CheckForNull Run<?, ?> run) {
+		StabilityDataFile loaded = contents;
+		if (loaded != null) {
+			return loaded;
+		}
+		if (!inFile) {
+			// durations were only ever stored in the StabilityDataFile
+			loaded = new StabilityDataFile(stability, Collections.<String, DurationHistogram>emptyMap());
+			contents = loaded;
+			return loaded;
+		}
+		if (run == null) {
+			return StabilityDataFile.empty();
+		}
+		try {
+			return StabilityDataCache.get(run, getFileName());
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to load the test stability data of " + run, e);
+			// not read again until the entry is evicted
+			StabilityDataFile empty = StabilityDataFile.empty();
+			StabilityDataCache.put(run, getFileName(), empty);
+			return empty;
+		}
 	}
 
 	@Override
 	public List<? extends TestAction> getTestAction(TestObject testObject) {
 		
 		if (testObject instanceof CaseResult || testObject instanceof ClassResult) {
-			CircularStabilityHistory ringBuffer = stability.get(testObject.getId());
-			return Collections.singletonList(new StabilityTestAction(ringBuffer));
+			Run<?, ?> run = testObject.getRun();
+			StabilityDataFile data = getContents(run);
+			Object key = getKey(run, testObject.getId());
+			CircularStabilityHistory history = key != null ? data.stability.get(key) : null;
+			DurationHistogram durations = key != null ? data.durations.get(key) : null;
+			if (history == null && durations == null && !isLast(run)) {
+				// probably published by a later junit step of the build, whose action must not be shadowed
+				return Collections.emptyList();
+			}
+			return Collections.singletonList(new StabilityTestAction(history, durations, isPassedOnRetry(key)));
+		}
+		
+		if (testObject instanceof PackageResult || testObject instanceof hudson.tasks.junit.TestResult) {
+			StabilityRollup rollup = rollups != null ? rollups.get(testObject.getId()) : null;
+			if (rollup != null) {
+				return Collections.singletonList(new StabilityRollupAction(rollup));
+			}
 		}
 		
 		return Collections.emptyList();
 	}
 	
+	/**
+	 * Whether this is the last stability data published for the build.
+	 */
+	private boolean isLast(@CheckForNull Run<?, ?> run) {
+		TestResultAction action = run != null ? run.getAction(TestResultAction.class) : null;
+		if (action == null) {
+			return true;
+		}
+		StabilityTestData last = null;
+		for (Data data : action.getData()) {
+			if (data instanceof StabilityTestData) {
+				last = (StabilityTestData) data;
+			}
+		}
+		return last == null || last == this;
+	}
+	
+	/**
+	 * The key the test is stored under: its id, or its {@link TestIdTable}
+	 * key if the ids are hashed, <code>null</code> if it has no key.
+	 */
+	private @CheckForNull Object getKey(@CheckForNull Run<?, ?> run, String id) {
+		if (!hashedIds) {
+			return id;
+		}
+		return run != null ? TestIdTable.get(run.getParent()).find(id) : null;
+	}
+	
+	private boolean isPassedOnRetry(@CheckForNull Object key) {
+		if (passedOnRetryKeys != null && key instanceof Long) {
+			for (long k : passedOnRetryKeys) {
+				if (k == (Long) key) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return passedOnRetry != null && passedOnRetry.contains(key);
+	}
+	
+	/**
+	 * The histories of the tracked tests by test id.
+	 * 
+	 * @param run the build this data belongs to
+	 */
+	public Map<String, CircularStabilityHistory> getStabilityHistories(Run<?, ?> run) {
+		return resolve(run, getContents(run).stability);
+	}
+	
+	/**
+	 * The durations of the test cases by test id.
+	 * 
+	 * @param run the build this data belongs to
+	 */
+	public Map<String, DurationHistogram> getDurations(Run<?, ?> run) {
+		return resolve(run, getContents(run).durations);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private <V> Map<String, V> resolve(Run<?, ?> run, Map<?, V> map) {
+		if (!hashedIds) {
+			// keyed by test ids
+			return Collections.unmodifiableMap((Map<String, V>) map);
+		}
+		TestIdTable table = TestIdTable.get(run.getParent());
+		Map<String, V> resolved = new HashMap<String, V>(map.size() * 4 / 3 + 1);
+		for (Map.Entry<?, V> e : map.entrySet()) {
+			resolved.put(table.resolve((Long) e.getKey()), e.getValue());
+		}
+		return Collections.unmodifiableMap(resolved);
+	}
+	
+	/**
+	 * The ids of the tests which failed and passed on retry in this build.
+	 * 
+	 * @param run the build this data belongs to
+	 */
+	public Set<String> getPassedOnRetry(Run<?, ?> run) {
+		if (passedOnRetryKeys != null) {
+			TestIdTable table = TestIdTable.get(run.getParent());
+			Set<String> resolved = new HashSet<String>(passedOnRetryKeys.length * 4 / 3 + 1);
+			for (long key : passedOnRetryKeys) {
+				resolved.add(table.resolve(key));
+			}
+			return Collections.unmodifiableSet(resolved);
+		}
+		if (passedOnRetry == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(passedOnRetry);
+	}
+	
+	/**
+	 * The histories of the tracked tests by test id, of all stability data
+	 * recorded for the given build (eg by several <code>junit</code> steps).
+	 */
+	static Map<String, CircularStabilityHistory> getAllStabilityHistories(Run<?, ?> run) {
+		TestResultAction action = run.getAction(TestResultAction.class);
+		if (action == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		for (Data data : action.getData()) {
+			if (data instanceof StabilityTestData) {
+				histories.putAll(((StabilityTestData) data).getStabilityHistories(run));
+			}
+		}
+		return histories;
+	}
+	
+	/**
+	 * The durations of the test cases by test id, of all stability data
+	 * recorded for the given build.
+	 */
+	static Map<String, DurationHistogram> getAllDurations(Run<?, ?> run) {
+		TestResultAction action = run.getAction(TestResultAction.class);
+		if (action == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, DurationHistogram> durations = new HashMap<String, DurationHistogram>();
+		for (Data data : action.getData()) {
+			if (data instanceof StabilityTestData) {
+				durations.putAll(((StabilityTestData) data).getDurations(run));
+			}
+		}
+		return durations;
+	}
+	
+	/**
+	 * Returns the stability data recorded for the given build, if any.
+	 */
+	static @CheckForNull StabilityTestData of(@CheckForNull Run<?, ?> run) {
+		if (run == null) {
+			return null;
+		}
+		TestResultAction action = run.getAction(TestResultAction.class);
+		if (action == null) {
+			return null;
+		}
+		for (Data data : action.getData()) {
+			if (data instanceof StabilityTestData) {
+				return (StabilityTestData) data;
+			}
+		}
+		return null;
+	}
+	
 	
 	
 	public static class Result {
 		int buildNumber;
 		boolean passed;
+		// build timestamp in milliseconds, 0 if unknown
+		long timestamp;
 		
 		public Result(int buildNumber, boolean passed) {
+			this(buildNumber, passed, 0);
+		}
+		
+		public Result(int buildNumber, boolean passed, long timestamp) {
 			super();
 			this.buildNumber = buildNumber;
 			this.passed = passed;
+			this.timestamp = timestamp;
 		}
 	}
 	
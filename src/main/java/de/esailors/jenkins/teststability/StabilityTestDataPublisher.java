@@ -27,29 +27,38 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.model.AbstractProject;
 import hudson.model.Descriptor;
+import hudson.model.Job;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.tasks.junit.JUnitResultArchiver;
 import hudson.tasks.junit.PackageResult;
 import hudson.tasks.junit.TestDataPublisher;
 import hudson.tasks.junit.TestResult;
 import hudson.tasks.junit.TestResultAction.Data;
+import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.ClassResult;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import de.esailors.jenkins.teststability.StabilityTestData.Result;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -62,37 +71,106 @@ public class StabilityTestDataPublisher extends TestDataPublisher {
 	
 	public static final boolean DEBUG = false; 
 	
+	// 0 to use the global history length
+	private int maxHistoryLength;
+	
 	@DataBoundConstructor
 	public StabilityTestDataPublisher() {
 	}
 	
+	public int getMaxHistoryLength() {
+		return maxHistoryLength;
+	}
+	
+	/**
+	 * Overrides the global history length for this job, 0 to use the global one.
+	 * <p>
+	 * Changing the length only resizes the histories of the next build. Once
+	 * that build is completed, the stored histories of all older builds are
+	 * resized by a {@link HistoryResize}.
+	 */
+	@DataBoundSetter
+	public void setMaxHistoryLength(int maxHistoryLength) {
+		this.maxHistoryLength = Math.max(0, maxHistoryLength);
+	}
+	
+	/**
+	 * The history length used for this job.
+	 */
+	int getEffectiveMaxHistoryLength() {
+		return maxHistoryLength > 0 ? maxHistoryLength : getDescriptor().getMaxHistoryLength();
+	}
+	
+	/**
+	 * The publisher configured for the given job, <code>null</code> for jobs
+	 * which do not declare their publishers (eg pipelines).
+	 */
+	static @CheckForNull StabilityTestDataPublisher of(Job<?, ?> job) {
+		if (!(job instanceof AbstractProject)) {
+			return null;
+		}
+		JUnitResultArchiver archiver = ((AbstractProject<?, ?>) job).getPublishersList().get(JUnitResultArchiver.class);
+		return archiver != null ? archiver.getTestDataPublishers().get(StabilityTestDataPublisher.class) : null;
+	}
+	
 	// param is top level TestResult for a build
 	@Override
 	public Data contributeTestData(Run<?, ?> run, @Nonnull FilePath workspace, Launcher launcher, TaskListener listener,
 								   TestResult testResult) throws IOException, InterruptedException {
 
+		long started = System.nanoTime();
 		Map<String,CircularStabilityHistory> stabilityHistoryPerTest = new HashMap<String,CircularStabilityHistory>();
+		Map<String,DurationHistogram> durationsPerTest = new HashMap<String,DurationHistogram>();
+		Map<String,StabilityRollup> rollups = new HashMap<String,StabilityRollup>();
+		Set<String> passedOnRetry = new HashSet<String>();
+		long timestamp = run.getTimeInMillis();
+		// 0 if stability is measured over the last maxHistoryLength builds only
+		long historyWindowStart = getDescriptor().getHistoryWindowStart(timestamp);
 
 		// NB: abstract TestResult
 		Collection<hudson.tasks.test.TestResult> classAndCaseResults = getClassAndCaseResults(testResult);
 		debug("Found " + classAndCaseResults.size() + " test results", listener);
+		// reruns of a test are recorded once
+		Map<String, Outcome> outcomes = Outcome.collapse(classAndCaseResults);
 		// NB: abstract TestResult
 		for (hudson.tasks.test.TestResult result: classAndCaseResults) {
+			Outcome outcome = outcomes.remove(result.getId());
+			if (outcome == null) {
+				// rerun of a test which is already recorded
+				continue;
+			}
+			if (outcome == Outcome.PASSED_ON_RETRY) {
+				passedOnRetry.add(result.getId());
+			}
+			
+			StabilityTestAction previousAction = getPreviousAction(result);
+			CircularStabilityHistory history = getPreviousHistory(previousAction);
+			CircularStabilityHistory previousHistory = history;
 			
-			CircularStabilityHistory history = getPreviousHistory(result);
+			if (result instanceof CaseResult) {
+				DurationHistogram durations = previousAction != null ? previousAction.getDurations() : null;
+				if (outcome.isRecorded()) {
+					durations = DurationHistogram.record(durations, result.getDuration());
+				}
+				// else test is skipped and we carry over the previous durations
+				if (durations != null) {
+					durationsPerTest.put(result.getId(), durations);
+				}
+			}
 
 			if (history != null) {
-				if (result.isPassed()) {
-					history.add(run.getNumber(), true);
-					
-					if (history.isAllPassed()) {
-						history = null;
-					}
-					
-				} else if (result.getFailCount() > 0) {
-					history.add(run.getNumber(), false);
+				if (outcome.isRecorded()) {
+					history = history.append(run.getNumber(), !outcome.isFailure(), timestamp);
+				}
+				// else test is skipped and we carry over the previous history as is
+				
+				if (historyWindowStart > 0) {
+					history = history.withoutResultsBefore(historyWindowStart);
+				}
+				
+				if (history.isAllPassed()) {
+					history = null;
 				}
-				// else test is skipped and we leave history unchanged
 				
 				if (history != null) {
 					stabilityHistoryPerTest.put(result.getId(), history);
@@ -100,22 +178,37 @@ public class StabilityTestDataPublisher extends TestDataPublisher {
 					stabilityHistoryPerTest.remove(result.getId());
 				}
 				// TODO perhaps it would be better to buildUpInitialHistory for passing tests too (after JENKINS-33168 is fixed)
-			} else if (result.getFailCount() > 0) {
+			} else if (outcome.isFailure()) {
 				// StabilityTestDataPublisher doesn't have a previous record of this failing test
 				// (eg StabilityTestDataPublisher wasn't enabled when it last failed)
 				debug("Found failed test " + result.getId(), listener);
-				int maxHistoryLength = getDescriptor().getMaxHistoryLength();
+				int maxHistoryLength = getEffectiveMaxHistoryLength();
 				CircularStabilityHistory ringBuffer = new CircularStabilityHistory(maxHistoryLength);
 				
 				// add previous results (if there are any):
-				buildUpInitialHistory(ringBuffer, result, maxHistoryLength - 1);
+				buildUpInitialHistory(ringBuffer, result, maxHistoryLength - 1, historyWindowStart);
 				
-				ringBuffer.add(run.getNumber(), false);
+				ringBuffer.add(run.getNumber(), false, timestamp);
 				stabilityHistoryPerTest.put(result.getId(), ringBuffer);
 			}
+			
+			if (result instanceof CaseResult) {
+				// case -> class -> package
+				StabilityRollup.record(rollups, testResult.getId(), result.getParent().getParent().getId(),
+						previousHistory, stabilityHistoryPerTest.get(result.getId()));
+			}
 		}
 		
-		return new StabilityTestData(stabilityHistoryPerTest);
+		// merged with the index of earlier junit steps of the build
+		StabilityIndex index = StabilityIndex.update(run.getParent(),
+				StabilityIndex.of(run.getNumber(), stabilityHistoryPerTest));
+		StabilityMetrics.recordPublish(run.getParent(), index, stabilityHistoryPerTest, durationsPerTest,
+				System.nanoTime() - started);
+		
+		StabilityTestData data = StabilityTestData.create(run.getParent(), stabilityHistoryPerTest, durationsPerTest,
+				rollups, passedOnRetry, getEffectiveMaxHistoryLength(), getDescriptor().isHashTestIds());
+		data.save(run);
+		return data;
 	}
 	
 	private void debug(String msg, TaskListener listener) {
@@ -125,36 +218,48 @@ public class StabilityTestDataPublisher extends TestDataPublisher {
 	}
 
 	// NB: abstract TestResult
-	private CircularStabilityHistory getPreviousHistory(hudson.tasks.test.TestResult result) {
+	private @CheckForNull StabilityTestAction getPreviousAction(hudson.tasks.test.TestResult result) {
 		// NB: abstract TestResult
 		hudson.tasks.test.TestResult previous = getPreviousResultSafely(result);
 
 		if (previous != null) {
-			StabilityTestAction previousAction = previous.getTestAction(StabilityTestAction.class);
-			if (previousAction != null) {
-				CircularStabilityHistory prevHistory = previousAction.getRingBuffer();
-				
-				if (prevHistory == null) {
-					return null;
-				}
-				
-				// copy to new to not modify the old data
-				CircularStabilityHistory newHistory = new CircularStabilityHistory(getDescriptor().getMaxHistoryLength());
-				newHistory.addAll(prevHistory.getData());
-				return newHistory;
+			return previous.getTestAction(StabilityTestAction.class);
+		}
+		return null;
+	}
+
+	private @CheckForNull CircularStabilityHistory getPreviousHistory(@CheckForNull StabilityTestAction previousAction) {
+		if (previousAction != null) {
+			CircularStabilityHistory prevHistory = previousAction.getRingBuffer();
+			
+			if (prevHistory == null) {
+				return null;
 			}
+			
+			// the previous history is never modified, new results are appended to a shared copy;
+			// if the length changed this is a view of the previous results until the job is migrated
+			int maxHistoryLength = getEffectiveMaxHistoryLength();
+			if (prevHistory.getMaxSize() != maxHistoryLength) {
+				return prevHistory.copy(maxHistoryLength);
+			}
+			return prevHistory;
 		}
 		return null;
 	}
 
 	// NB: abstract TestResult
-	private void buildUpInitialHistory(CircularStabilityHistory ringBuffer, hudson.tasks.test.TestResult result, int number) {
+	private void buildUpInitialHistory(CircularStabilityHistory ringBuffer, hudson.tasks.test.TestResult result, int number,
+			long historyWindowStart) {
 		List<Result> testResultsFromNewestToOldest = new ArrayList<Result>(number);
 		// NB: abstract TestResult
 		hudson.tasks.test.TestResult previousResult = getPreviousResultSafely(result);
-		while (previousResult != null) {
+		while (previousResult != null && testResultsFromNewestToOldest.size() < number) {
+			Run<?, ?> previousRun = previousResult.getRun();
+			if (previousRun.getTimeInMillis() < historyWindowStart) {
+				break;
+			}
 			testResultsFromNewestToOldest.add(
-					new Result(previousResult.getRun().getNumber(), previousResult.isPassed()));
+					new Result(previousRun.getNumber(), previousResult.isPassed(), previousRun.getTimeInMillis()));
 			previousResult = previousResult.getPreviousResult();
 		}
 
@@ -264,7 +369,7 @@ public class StabilityTestDataPublisher extends TestDataPublisher {
 //	}
 
 	// NB: param is top level TestResult for a build, returns abstract TestResults (classes and their cases)
-	private Collection<hudson.tasks.test.TestResult> getClassAndCaseResults(TestResult testResult) {
+	static Collection<hudson.tasks.test.TestResult> getClassAndCaseResults(TestResult testResult) {
 		// NB: abstract TestResult
 		List<hudson.tasks.test.TestResult> results = new ArrayList<hudson.tasks.test.TestResult>();
 		
@@ -290,11 +395,19 @@ public class StabilityTestDataPublisher extends TestDataPublisher {
 	public static class DescriptorImpl extends Descriptor<TestDataPublisher> {
 		
 		private int maxHistoryLength = 30;
+		
+		// 0 to measure stability over the last maxHistoryLength builds only
+		private int historyWindowDays = 0;
+		
+		// persist hashed test ids instead of the ids, see TestIdTable
+		private boolean hashTestIds = false;
 
 		@Override
 		public boolean configure(StaplerRequest req, JSONObject json)
 				throws FormException {
 			this.maxHistoryLength = json.getInt("maxHistoryLength");
+			this.historyWindowDays = json.optInt("historyWindowDays", 0);
+			this.hashTestIds = json.optBoolean("hashTestIds", false);
 			
 			save();
             return super.configure(req,json);
@@ -303,6 +416,29 @@ public class StabilityTestDataPublisher extends TestDataPublisher {
 		public int getMaxHistoryLength() {
 			return this.maxHistoryLength;
 		}
+		
+		public int getHistoryWindowDays() {
+			return this.historyWindowDays;
+		}
+		
+		public boolean isHashTestIds() {
+			return this.hashTestIds;
+		}
+		
+		public void setHashTestIds(boolean hashTestIds) {
+			this.hashTestIds = hashTestIds;
+		}
+		
+		/**
+		 * Start of the history time window for a build started at the given
+		 * timestamp, or 0 if no time window is configured.
+		 */
+		long getHistoryWindowStart(long timestamp) {
+			if (historyWindowDays <= 0) {
+				return 0;
+			}
+			return timestamp - TimeUnit.DAYS.toMillis(historyWindowDays);
+		}
 
 		@Override
 		public String getDisplayName() {
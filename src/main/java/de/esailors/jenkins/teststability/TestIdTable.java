@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.model.Job;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Per-job table resolving the hashed test ids of {@link StabilityTestData} back to test ids.
+ * <p>
+ * Builds can persist their stability data keyed by a fixed width 64-bit hash of
+ * the test id instead of the id itself, which keeps long parameterized test
+ * names out of every data file. Each id is written once to
+ * <code>test-stability-ids.txt</code> in the job directory. A test whose hash is
+ * already taken by another test gets the next free key.
+ * <p>
+ * The file is append-only, so it keeps the ids of tests which no longer
+ * exist. A {@link HistoryRebuild} rewrites it with the ids of the retained
+ * builds only.
+ */
+final class TestIdTable {
+	
+	private static final Logger LOGGER = Logger.getLogger(TestIdTable.class.getName());
+	
+	static final String FILE_NAME = "test-stability-ids.txt";
+	private static final String HEADER = "# test stability ids v1";
+	
+	// loaded tables; entries go away together with their job
+	private static final Map<Job<?, ?>, TestIdTable> TABLES = new WeakHashMap<Job<?, ?>, TestIdTable>();
+	
+	private final Map<Long, String> ids = new HashMap<Long, String>();
+	// registered since the last save
+	private final List<Long> pending = new ArrayList<Long>();
+	// registered since the start of a compaction, null if none is running
+	private Set<Long> registeredDuringCompaction;
+	
+	private TestIdTable() {
+	}
+	
+	/**
+	 * Returns the table of the job, loading it from disk if needed.
+	 */
+	static TestIdTable get(Job<?, ?> job) {
+		synchronized (TABLES) {
+			TestIdTable table = TABLES.get(job);
+			if (table == null) {
+				table = new TestIdTable();
+				table.load(getFile(job));
+				TABLES.put(job, table);
+			}
+			return table;
+		}
+	}
+	
+	/**
+	 * The hash of a test id, which is its key unless another test has it.
+	 */
+	static long key(String id) {
+		// FNV-1a followed by the MurmurHash3 finalizer to spread the bits
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < id.length(); i++) {
+			h ^= id.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	// 16 lower case hex digits
+	private static String toHex(long key) {
+		String hex = Long.toHexString(key);
+		return hex.length() == 16 ? hex : "0000000000000000".substring(hex.length()) + hex;
+	}
+	
+	/**
+	 * Returns the key to persist for the test id: its hash, or the next free
+	 * key after it if the hash is already taken by another test.
+	 * New ids are only written to disk by {@link #save(Job)}.
+	 */
+	synchronized long register(String id) {
+		long key = key(id);
+		String known;
+		while ((known = ids.get(key)) != null) {
+			if (known.equals(id)) {
+				return key;
+			}
+			LOGGER.log(Level.FINE, "Hash collision between {0} and {1}", new Object[] {known, id});
+			key++;
+		}
+		ids.put(key, id);
+		pending.add(key);
+		if (registeredDuringCompaction != null) {
+			registeredDuringCompaction.add(key);
+		}
+		return key;
+	}
+	
+	/**
+	 * Returns the key of a registered test id, <code>null</code> if it is not registered.
+	 */
+	synchronized @CheckForNull Long find(String id) {
+		long key = key(id);
+		String known;
+		while ((known = ids.get(key)) != null) {
+			if (known.equals(id)) {
+				return key;
+			}
+			key++;
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the test id of a persisted key, its hex digits if the key is unknown.
+	 */
+	synchronized String resolve(long key) {
+		String id = ids.get(key);
+		return id != null ? id : toHex(key);
+	}
+	
+	// resolved whenever needed, as the job directory changes when the job is renamed or moved
+	private static File getFile(Job<?, ?> job) {
+		return new File(job.getRootDir(), FILE_NAME);
+	}
+	
+	/**
+	 * Appends the ids registered since the last save to the file of the given job.
+	 */
+	synchronized void save(Job<?, ?> job) {
+		if (pending.isEmpty()) {
+			return;
+		}
+		File file = getFile(job);
+		try {
+			boolean exists = file.exists();
+			try (Writer w = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+				if (!exists) {
+					w.write(HEADER + "\n");
+				}
+				write(w, pending);
+			}
+			pending.clear();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save test ids to " + file, e);
+		}
+	}
+	
+	private void write(Writer w, Collection<Long> keys) throws IOException {
+		for (Long key : keys) {
+			// the id is last as it may contain anything but line breaks
+			w.write(toHex(key) + "\t" + ids.get(key) + "\n");
+		}
+	}
+	
+	/**
+	 * Starts tracking the ids registered from now on, which are kept by the
+	 * next {@link #compact(Job, Collection)} as they may belong to builds
+	 * published in the meantime.
+	 */
+	synchronized void startCompaction() {
+		registeredDuringCompaction = new HashSet<Long>();
+	}
+	
+	/**
+	 * Rewrites the table of the job with the given test ids and the ids
+	 * registered since {@link #startCompaction()}.
+	 */
+	synchronized void compact(Job<?, ?> job, Collection<String> retained) {
+		Set<Long> recent = registeredDuringCompaction;
+		registeredDuringCompaction = null;
+		if (recent == null) {
+			return;
+		}
+		Map<Long, String> kept = new HashMap<Long, String>(ids.size() * 4 / 3 + 1);
+		for (String id : retained) {
+			Long key = find(id);
+			if (key != null) {
+				// the tests whose hash collided with this one, so that it is still found
+				for (long k = key(id); k != key; k++) {
+					kept.put(k, ids.get(k));
+				}
+				kept.put(key, id);
+			}
+		}
+		for (Long key : recent) {
+			kept.put(key, ids.get(key));
+		}
+		for (Long key : pending) {
+			kept.put(key, ids.get(key));
+		}
+		if (kept.size() == ids.size()) {
+			return;
+		}
+		
+		File file = getFile(job);
+		try {
+			Path tmp = Files.createTempFile(file.getParentFile().toPath(), FILE_NAME, ".tmp");
+			try {
+				ids.keySet().retainAll(kept.keySet());
+				try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+					w.write(HEADER + "\n");
+					write(w, ids.keySet());
+				}
+				Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				pending.clear();
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to compact the test ids in " + file, e);
+		}
+	}
+	
+	/**
+	 * Stops tracking the registered ids without compacting the table.
+	 */
+	synchronized void cancelCompaction() {
+		registeredDuringCompaction = null;
+	}
+	
+	private void load(File file) {
+		if (!file.exists()) {
+			return;
+		}
+		try (BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(r.readLine())) {
+				LOGGER.log(Level.WARNING, "Ignoring test ids of unknown format in {0}", file);
+				return;
+			}
+			String line;
+			while ((line = r.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				// skips a line cut off by a crash while appending
+				if (tab == 16) {
+					ids.put(Long.parseUnsignedLong(line.substring(0, tab), 16), line.substring(tab + 1));
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			LOGGER.log(Level.WARNING, "Failed to load test ids from " + file, e);
+		}
+	}
+}
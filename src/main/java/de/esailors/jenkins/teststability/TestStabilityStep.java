@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2013, eSailors IT Solutions GmbH
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.esailors.jenkins.teststability;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Pipeline step returning the stability of the tracked tests of the current job.
+ * <p>
+ * Reads the {@link StabilityIndex} of the job, so no builds are loaded. Returns a map
+ * with the <code>build</code> the data was published by and the matching
+ * <code>tests</code>, mapping each test id to its <code>flakiness</code>,
+ * <code>stability</code>, <code>failed</code>, <code>total</code>,
+ * <code>lastFailure</code> and <code>unstableSince</code>:
+ * <pre>
+ * def flaky = testStability(minFlakiness: 10).tests.keySet()
+ * </pre>
+ */
+public class TestStabilityStep extends Step {
+	
+	private int minFlakiness = 0;
+	private int maxStability = 100;
+	private @CheckForNull String prefix;
+	
+	@DataBoundConstructor
+	public TestStabilityStep() {
+	}
+	
+	public int getMinFlakiness() {
+		return minFlakiness;
+	}
+	
+	@DataBoundSetter
+	public void setMinFlakiness(int minFlakiness) {
+		this.minFlakiness = minFlakiness;
+	}
+	
+	public int getMaxStability() {
+		return maxStability;
+	}
+	
+	@DataBoundSetter
+	public void setMaxStability(int maxStability) {
+		this.maxStability = maxStability;
+	}
+	
+	public @CheckForNull String getPrefix() {
+		return prefix;
+	}
+	
+	@DataBoundSetter
+	public void setPrefix(@CheckForNull String prefix) {
+		this.prefix = prefix == null || prefix.isEmpty() ? null : prefix;
+	}
+	
+	@Override
+	public StepExecution start(StepContext context) throws Exception {
+		return new Execution(this, context);
+	}
+	
+	private static final class Execution extends SynchronousStepExecution<Map<String, Object>> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final transient TestStabilityStep step;
+		
+		Execution(TestStabilityStep step, StepContext context) {
+			super(context);
+			this.step = step;
+		}
+		
+		@Override
+		protected Map<String, Object> run() throws Exception {
+			Run<?, ?> run = getContext().get(Run.class);
+			final Map<String, Object> tests = new LinkedHashMap<String, Object>();
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			
+			StabilityIndex index = StabilityIndex.get(run.getParent());
+			if (index == null) {
+				getContext().get(TaskListener.class).getLogger().println("No test stability data published for this job yet");
+				result.put("build", 0);
+				result.put("tests", tests);
+				return result;
+			}
+			
+			index.forEach(new StabilityIndex.EntryVisitor() {
+				@Override
+				public void visit(String id, int flakiness, int stability, int failed, int total, int lastFailure, int unstableSince) throws IOException {
+					if (flakiness < step.minFlakiness || stability > step.maxStability) {
+						return;
+					}
+					if (step.prefix != null && !id.startsWith(step.prefix)) {
+						return;
+					}
+					Map<String, Object> test = new LinkedHashMap<String, Object>();
+					test.put("flakiness", flakiness);
+					test.put("stability", stability);
+					test.put("failed", failed);
+					test.put("total", total);
+					test.put("lastFailure", lastFailure);
+					test.put("unstableSince", unstableSince);
+					tests.put(id, test);
+				}
+			});
+			result.put("build", index.getBuildNumber());
+			result.put("tests", tests);
+			return result;
+		}
+	}
+	
+	@Extension
+	public static class DescriptorImpl extends StepDescriptor {
+		
+		@Override
+		public String getFunctionName() {
+			return "testStability";
+		}
+		
+		@Override
+		public String getDisplayName() {
+			return "Get the stability of the tests of this job";
+		}
+		
+		@Override
+		public Set<? extends Class<?>> getRequiredContext() {
+			return Collections.<Class<?>>singleton(Run.class);
+		}
+	}
+}
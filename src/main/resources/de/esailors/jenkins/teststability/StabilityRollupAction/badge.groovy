@@ -0,0 +1 @@
+raw("<img src='${rootURL}${my.smallImagePath}'/> <span>(${my.description})</span>")
\ No newline at end of file
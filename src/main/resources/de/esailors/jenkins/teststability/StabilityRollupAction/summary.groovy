@@ -0,0 +1 @@
+raw("<div><img src='${rootURL}${my.bigImagePath}'/> ${my.description}</div>")
\ No newline at end of file
@@ -1 +1 @@
-raw("<img src='${rootURL}${my.smallImagePath}'/> <span>(${my.description})</span>")
\ No newline at end of file
+raw(my.getBadgeHtml(rootURL))
\ No newline at end of file
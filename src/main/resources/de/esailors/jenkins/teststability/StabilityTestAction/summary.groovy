@@ -1 +1,4 @@
-raw("<div><img src='${rootURL}${my.bigImagePath}'/> ${my.description}</div>")
\ No newline at end of file
+raw("<div><img src='${rootURL}${my.bigImagePath}'/> ${my.description}</div>")
+if (my.durationDescription != null) {
+    raw("<div>${my.durationDescription}</div>")
+}
@@ -0,0 +1,223 @@
+package de.esailors.jenkins.teststability;
+
+import hudson.util.XStream2;
+
+import java.util.PrimitiveIterator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircularStabilityHistoryTest {
+
+	@Test
+	public void indexAccessMustStartWithOldestResult() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(3);
+		for (int i = 1; i <= 5; i++) {
+			ringBuffer.add(i, i % 2 == 0);
+		}
+
+		Assert.assertEquals(3, ringBuffer.size());
+		Assert.assertEquals(3, ringBuffer.getBuildNumber(0));
+		Assert.assertEquals(5, ringBuffer.getBuildNumber(2));
+		Assert.assertFalse(ringBuffer.isPassed(0));
+		Assert.assertTrue(ringBuffer.isPassed(1));
+	}
+
+	@Test
+	public void buildNumbersMustBeIteratedInOrder() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(2);
+		ringBuffer.add(7, true);
+		ringBuffer.add(8, false);
+		ringBuffer.add(9, false);
+
+		PrimitiveIterator.OfInt it = ringBuffer.buildNumbers();
+		Assert.assertEquals(8, it.nextInt());
+		Assert.assertEquals(9, it.nextInt());
+		Assert.assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void forEachMustVisitAllResults() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(4);
+		ringBuffer.add(1, true);
+		ringBuffer.add(2, false);
+
+		final StringBuilder visited = new StringBuilder();
+		ringBuffer.forEach((buildNumber, passed) -> visited.append(buildNumber).append(passed ? '+' : '-'));
+		Assert.assertEquals("1+2-", visited.toString());
+	}
+
+	@Test
+	public void copyMustKeepNewestResults() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(5);
+		for (int i = 1; i <= 5; i++) {
+			ringBuffer.add(i, true);
+		}
+
+		CircularStabilityHistory copy = ringBuffer.copy(2);
+		Assert.assertEquals(2, copy.getMaxSize());
+		Assert.assertEquals(4, copy.getBuildNumber(0));
+		Assert.assertEquals(5, copy.getBuildNumber(1));
+	}
+
+	@Test
+	public void appendMustNotModifyPreviousHistory() {
+		CircularStabilityHistory first = new CircularStabilityHistory(3);
+		first.add(1, false);
+
+		CircularStabilityHistory second = first.append(2, true);
+		CircularStabilityHistory branch = first.append(3, false);
+
+		Assert.assertEquals(1, first.size());
+		Assert.assertEquals(2, second.size());
+		Assert.assertEquals(2, second.getBuildNumber(1));
+		Assert.assertEquals(2, branch.size());
+		Assert.assertEquals(3, branch.getBuildNumber(1));
+		Assert.assertEquals(2, second.getBuildNumber(1));
+	}
+
+	@Test
+	public void appendMustKeepWindowAcrossCompactions() {
+		CircularStabilityHistory history = new CircularStabilityHistory(3);
+		for (int i = 1; i <= 20; i++) {
+			CircularStabilityHistory previous = history;
+			history = history.append(i, i % 3 != 0);
+			Assert.assertEquals(Math.min(i - 1, 3), previous.size());
+		}
+
+		Assert.assertEquals(3, history.size());
+		Assert.assertEquals(18, history.getBuildNumber(0));
+		Assert.assertFalse(history.isPassed(0));
+		Assert.assertEquals(20, history.getBuildNumber(2));
+	}
+
+	@Test
+	public void resultsBeforeTimeWindowMustBeDropped() {
+		long day = 24 * 60 * 60 * 1000L;
+		CircularStabilityHistory history = new CircularStabilityHistory(10);
+		for (int i = 1; i <= 5; i++) {
+			history = history.append(i, false, i * day);
+		}
+
+		Assert.assertSame(history, history.withoutResultsBefore(day));
+
+		CircularStabilityHistory windowed = history.withoutResultsBefore(3 * day);
+		Assert.assertEquals(3, windowed.size());
+		Assert.assertEquals(3, windowed.getBuildNumber(0));
+		Assert.assertEquals(3 * day, windowed.getTimestamp(0));
+		Assert.assertEquals(5, history.size());
+	}
+
+	@Test
+	public void resultsWithUnknownTimestampMustBeKeptInTimeWindow() {
+		CircularStabilityHistory history = new CircularStabilityHistory(10);
+		history.add(1, false);
+		history.add(2, false, 2000L);
+
+		Assert.assertSame(history, history.withoutResultsBefore(1000L));
+
+		// ...until they age out by count
+		for (int i = 3; i <= 11; i++) {
+			history = history.append(i, true, i * 1000L);
+		}
+		Assert.assertEquals(2, history.withoutResultsBefore(1000L).getBuildNumber(0));
+	}
+
+	@Test
+	public void resultsWithUnknownTimestampBeforeOldResultsMustBeDropped() {
+		CircularStabilityHistory history = new CircularStabilityHistory(10);
+		history.add(1, false);
+		history.add(2, false, 2000L);
+		history.add(3, false);
+		history.add(4, false, 4000L);
+
+		CircularStabilityHistory windowed = history.withoutResultsBefore(3000L);
+		Assert.assertEquals(2, windowed.size());
+		Assert.assertEquals(3, windowed.getBuildNumber(0));
+	}
+
+	@Test
+	public void newFailuresMustMarkTestAsUnstable() {
+		CircularStabilityHistory history = new CircularStabilityHistory(30);
+		for (int i = 1; i <= 40; i++) {
+			history = history.append(i, true);
+		}
+		Assert.assertEquals(0, history.getUnstableSince());
+
+		history = history.append(41, false);
+		Assert.assertEquals(0, history.getUnstableSince());
+		history = history.append(42, false);
+		Assert.assertEquals(41, history.getUnstableSince());
+
+		// stays flagged while the test keeps failing now and then
+		for (int i = 43; i <= 50; i++) {
+			history = history.append(i, i % 2 == 0);
+		}
+		Assert.assertEquals(41, history.getUnstableSince());
+
+		for (int i = 51; i <= 70; i++) {
+			history = history.append(i, true);
+		}
+		Assert.assertEquals(0, history.getUnstableSince());
+	}
+
+	@Test
+	public void singleFailuresMustNotMarkTestAsUnstable() {
+		CircularStabilityHistory history = new CircularStabilityHistory(30);
+		for (int i = 1; i <= 100; i++) {
+			history = history.append(i, i % 10 != 0);
+		}
+		Assert.assertEquals(0, history.getUnstableSince());
+	}
+
+	@Test
+	public void changeDetectionMustSurviveResize() {
+		CircularStabilityHistory history = new CircularStabilityHistory(30);
+		history.add(1, false);
+		history.add(2, false);
+		history.add(3, false);
+
+		Assert.assertEquals(1, history.copy(1).getUnstableSince());
+	}
+
+	@Test
+	public void baselineRecordMustBeReadInOrder() {
+		// written by the circular buffer of earlier versions: builds 1 to 6 with 4 slots, so it wrapped at slot 2
+		CircularStabilityHistory history = fromXml("<history><head>2</head><tail>2</tail><size>4</size>"
+				+ "<data>5;1,6;0,3;0,4;1</data></history>");
+
+		Assert.assertEquals(4, history.getMaxSize());
+		Assert.assertEquals(4, history.size());
+		Assert.assertArrayEquals(new int[] { 3, 4, 5, 6 }, buildNumbers(history));
+		Assert.assertFalse(history.isPassed(0));
+		Assert.assertTrue(history.isPassed(1));
+		Assert.assertTrue(history.isPassed(2));
+		Assert.assertFalse(history.isPassed(3));
+		Assert.assertEquals(0, history.getTimestamp(0));
+	}
+
+	@Test
+	public void partialBaselineRecordMustBeRead() {
+		CircularStabilityHistory history = fromXml("<history><head>0</head><tail>2</tail><size>2</size>"
+				+ "<data>1;0,2;1,,</data></history>");
+
+		Assert.assertEquals(4, history.getMaxSize());
+		Assert.assertArrayEquals(new int[] { 1, 2 }, buildNumbers(history));
+		Assert.assertEquals(1, history.getLastFailure());
+	}
+
+	private static CircularStabilityHistory fromXml(String xml) {
+		XStream2 xstream = new XStream2();
+		xstream.registerConverter(new CircularStabilityHistory.ConverterImpl());
+		xstream.alias("history", CircularStabilityHistory.class);
+		return (CircularStabilityHistory) xstream.fromXML(xml);
+	}
+
+	private static int[] buildNumbers(CircularStabilityHistory history) {
+		int[] buildNumbers = new int[history.size()];
+		for (int i = 0; i < buildNumbers.length; i++) {
+			buildNumbers[i] = history.getBuildNumber(i);
+		}
+		return buildNumbers;
+	}
+}
@@ -0,0 +1,75 @@
+package de.esailors.jenkins.teststability;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DurationHistogramTest {
+
+	@Test
+	public void bucketsMustBeLogScale() {
+		Assert.assertEquals(0, DurationHistogram.bucket(0f));
+		Assert.assertEquals(1, DurationHistogram.bucket(0.001f));
+		Assert.assertEquals(2, DurationHistogram.bucket(0.003f));
+		Assert.assertEquals(11, DurationHistogram.bucket(1.5f));
+		Assert.assertEquals(DurationHistogram.BUCKETS - 1, DurationHistogram.bucket(1000000f));
+	}
+
+	@Test
+	public void medianMustFollowRecentDurations() {
+		DurationHistogram histogram = null;
+		for (int i = 0; i < 200; i++) {
+			histogram = DurationHistogram.record(histogram, 0.1f);
+		}
+		for (int i = 0; i < 100; i++) {
+			histogram = DurationHistogram.record(histogram, 10f);
+		}
+
+		Assert.assertEquals(300, histogram.getSamples());
+		Assert.assertEquals(DurationHistogram.bucket(10f), DurationHistogram.bucket(histogram.getMedian()));
+	}
+
+	@Test
+	public void durationJumpMustBeReported() {
+		DurationHistogram histogram = null;
+		for (int i = 0; i < 20; i++) {
+			histogram = DurationHistogram.record(histogram, 1f);
+		}
+		Assert.assertEquals(1f, histogram.getRegression(), 0.5f);
+
+		histogram = DurationHistogram.record(histogram, 8f);
+		Assert.assertTrue(histogram.getRegression() > 5f);
+	}
+
+	@Test
+	public void medianMustBeExact() {
+		DurationHistogram histogram = null;
+		for (int i = 0; i < 20; i++) {
+			histogram = DurationHistogram.record(histogram, 1f);
+		}
+		Assert.assertEquals(1f, histogram.getMedian(), 0f);
+		Assert.assertEquals(1f, histogram.getRegression(), 0f);
+
+		histogram = DurationHistogram.record(histogram, 3f);
+		Assert.assertEquals(1f, histogram.getMedian(), 0f);
+		Assert.assertEquals(3f, histogram.getRegression(), 0f);
+	}
+
+	@Test
+	public void medianMustOnlyUseRecentDurations() {
+		DurationHistogram histogram = null;
+		for (int i = 0; i < 20; i++) {
+			histogram = DurationHistogram.record(histogram, 1f);
+		}
+		for (int i = 0; i < DurationHistogram.RECENT / 2 + 1; i++) {
+			histogram = DurationHistogram.record(histogram, 2f);
+		}
+		Assert.assertEquals(2f, histogram.getMedian(), 0f);
+	}
+
+	@Test
+	public void regressionMustNeedEnoughSamples() {
+		DurationHistogram histogram = DurationHistogram.record(null, 1f);
+		histogram = DurationHistogram.record(histogram, 8f);
+		Assert.assertEquals(1f, histogram.getRegression(), 0f);
+	}
+}
@@ -1,5 +1,6 @@
 package de.esailors.jenkins.teststability;
 
+import hudson.ExtensionList;
 import hudson.model.Descriptor;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
@@ -8,13 +9,21 @@ import hudson.model.Run;
 import hudson.tasks.junit.ClassResult;
 import hudson.tasks.junit.JUnitResultArchiver;
 import hudson.tasks.junit.TestDataPublisher;
+import hudson.tasks.junit.TestResult;
 import hudson.util.DescribableList;
+import org.htmlunit.WebRequest;
+import org.htmlunit.WebResponse;
 import org.jvnet.hudson.test.ExtractResourceSCM;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.junit.Test;
 import org.junit.Rule;
 import org.jvnet.hudson.test.TouchBuilder;
 
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
 import static de.esailors.jenkins.teststability.Helper.expectConsistentMixedResults;
 import static de.esailors.jenkins.teststability.Helper.expectMixedResultsAfterSuccess;
 import static de.esailors.jenkins.teststability.Helper.expectSuccessAfter2MixedResults;
@@ -74,6 +83,279 @@ public class FreestyleTest {
 
         Run build2 = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
         expectMixedResultsAfterSuccess(testResult(build2));
+        // the histories are kept out of the build record
+        assertThat(StabilityDataFile.getFile(build2.getRootDir())).exists();
+        assertThat(new File(build2.getRootDir(), "build.xml")).content().doesNotContain("ProjectSettingsTest");
+
+        StabilityIndex index = StabilityIndex.get(project);
+        assertThat(index).isNotNull();
+        assertThat(index.getBuildNumber()).isEqualTo(build2.getNumber());
+        assertThat(index.query(StabilityIndex.Sort.FLAKINESS, "ProjectSettingsTest", 0, 10).getMatches()).isPositive();
+    }
+
+    @Test
+    public void packageAndSuiteRollups() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        Run build = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+
+        TestResult result = testResult(build).getResult();
+        StabilityRollup suite = result.getTestAction(StabilityRollupAction.class).getRollup();
+        assertThat(suite.getTests()).isEqualTo(result.getTotalCount());
+        assertThat(suite.getUnstableTests()).isEqualTo(result.getFailCount());
+
+        StabilityRollup pkg = result.byPackage("test.foo.bar").getTestAction(StabilityRollupAction.class).getRollup();
+        assertThat(pkg.getUnstableTests()).isEqualTo(suite.getUnstableTests());
+        assertThat(pkg.getDescription()).contains("of " + pkg.getTests() + " tests failed recently");
+    }
+
+    @Test
+    public void rerunsAreRecordedOnce() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        Run build = runBuild(project, "workspaceRerun.zip", Result.UNSTABLE, true);
+
+        ClassResult classResult = getClassResult(testResult(build), "test.foo.bar", "RetriedTest");
+        StabilityTestAction flaky = classResult.getCaseResult("flaky").getTestAction(StabilityTestAction.class);
+        assertThat(flaky.isPassedOnRetry()).isTrue();
+        assertThat(flaky.getTotal()).isEqualTo(1);
+        assertThat(flaky.getDescription()).contains("Passed on retry in this build");
+        assertThat(classResult.getTestAction(StabilityTestAction.class).isPassedOnRetry()).isTrue();
+
+        StabilityTestData data = StabilityTestData.of(build);
+        assertThat(data.getPassedOnRetry(build)).contains("junit/test.foo.bar/RetriedTest/flaky");
+        // the rerun is recorded under the id of the first run only
+        assertThat(data.getStabilityHistories(build)).containsKey("junit/test.foo.bar/RetriedTest/flaky")
+                .doesNotContainKey("junit/test.foo.bar/RetriedTest/flaky_2");
+        assertThat(data.getDurations(build)).doesNotContainKey("junit/test.foo.bar/RetriedTest/flaky_2");
+    }
+
+    @Test
+    public void hashedTestIds() throws Exception {
+        j.jenkins.getDescriptorByType(StabilityTestDataPublisher.DescriptorImpl.class).setHashTestIds(true);
+        FreeStyleProject project = j.createFreeStyleProject();
+
+        Run build1 = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        expectConsistentMixedResults(testResult(build1));
+        Run build2 = runBuild(project, "workspaceAllPass.zip", Result.SUCCESS, true);
+        expectSuccessAfter2MixedResults(testResult(build2));
+
+        String id = "junit/test.foo.bar/ProjectSettingsTest";
+        File file = StabilityDataFile.getFile(build2.getRootDir());
+        assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).doesNotContain(id);
+        assertThat(StabilityDataFile.read(file).stability).containsKey(TestIdTable.get(project).find(id));
+        assertThat(new File(project.getRootDir(), TestIdTable.FILE_NAME)).content().contains(id);
+        assertThat(StabilityTestData.of(build2).getStabilityHistories(build2)).containsKey(id);
+
+        // ids of tests which are gone are dropped by a rebuild
+        TestIdTable.get(project).register("junit/gone/GoneTest");
+        TestIdTable.get(project).save(project);
+        HistoryRebuild rebuild = HistoryRebuild.start(project, 30, 0, true);
+        while (rebuild.isRunning()) {
+            Thread.sleep(100);
+        }
+        assertThat(new File(project.getRootDir(), TestIdTable.FILE_NAME)).content()
+                .contains(id)
+                .doesNotContain("junit/gone/GoneTest");
+        assertThat(StabilityTestData.of(build2).getStabilityHistories(build2)).containsKey(id);
+    }
+
+    @Test
+    public void testIdsFollowRenamedJob() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("before");
+        TestIdTable table = TestIdTable.get(project);
+        table.register("junit/a/B/before");
+        table.save(project);
+
+        project.renameTo("after");
+        table.register("junit/a/B/after");
+        table.save(project);
+        assertThat(new File(project.getRootDir(), TestIdTable.FILE_NAME)).content()
+                .contains("junit/a/B/before")
+                .contains("junit/a/B/after");
+    }
+
+    @Test
+    public void rebuildHistoryFromExistingBuilds() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+
+        Run build1 = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, false);
+        Run build2 = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, false);
+        assertThat(getClassResult(testResult(build2), "test.foo.bar", "DefaultIntegrationTest")
+                .getTestAction(StabilityTestAction.class)).isNull();
+
+        HistoryRebuild rebuild = HistoryRebuild.start(project, 30, 0, false);
+        while (rebuild.isRunning()) {
+            Thread.sleep(100);
+        }
+        assertThat(rebuild.getState()).isEqualTo(HistoryRebuild.State.FINISHED);
+        assertThat(rebuild.getDone()).isEqualTo(2);
+
+        expectConsistentMixedResults(testResult(build1));
+        expectConsistentMixedResults(testResult(build2));
+
+        // the publisher continues from the rebuilt history
+        Run build3 = runBuild(project, "workspaceAllPass.zip", Result.SUCCESS, true);
+        expectSuccessAfter2MixedResults(testResult(build3));
+    }
+
+    @Test
+    public void changedHistoryLengthMigratesOlderBuilds() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        Run build1 = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        assertThat(StabilityTestData.of(build1).getMaxHistoryLength()).isEqualTo(30);
+
+        for (JUnitResultArchiver archiver : project.getPublishersList().getAll(JUnitResultArchiver.class)) {
+            for (TestDataPublisher publisher : archiver.getTestDataPublishers()) {
+                ((StabilityTestDataPublisher) publisher).setMaxHistoryLength(5);
+            }
+        }
+        FreeStyleBuild build3 = j.assertBuildStatus(Result.UNSTABLE, project.scheduleBuild2(0).get());
+        j.assertLogContains("history length changed from 30 to 5", build3);
+
+        // a manual rebuild uses the configured length too
+        assertThat(StabilityTestDataPublisher.of(project).getEffectiveMaxHistoryLength()).isEqualTo(5);
+
+        HistoryResize.get(project).get();
+        assertThat(HistoryRebuild.get(project)).isNull();
+        StabilityTestData migrated = StabilityTestData.of(build1);
+        assertThat(migrated.getMaxHistoryLength()).isEqualTo(5);
+        assertThat(migrated.getStabilityHistories(build1).values())
+                .isNotEmpty()
+                .allSatisfy(history -> assertThat(history.getMaxSize()).isEqualTo(5));
+    }
+
+    @Test
+    public void jobWithoutTestResultsRenders() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+        JenkinsRule.WebClient wc = j.createWebClient();
+        wc.getPage(project);
+        wc.getPage(build);
+        assertThat(build.getAction(StabilityBuildAction.class)).isNull();
+        assertThat(project.getAction(StabilityProjectAction.class)).isNull();
+    }
+
+    @Test
+    public void jobWithoutStabilityDataHasNoAction() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, false);
+        assertThat(project.getAction(StabilityProjectAction.class)).isNull();
+
+        runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        assertThat(project.getAction(StabilityProjectAction.class).getIconFileName()).isEqualTo("graph.png");
+    }
+
+    @Test
+    public void durationsOfConstantTestsDoNotRegress() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        Run build = null;
+        for (int i = 0; i < DurationHistogram.MIN_SAMPLES; i++) {
+            build = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        }
+
+        DurationHistogram durations = StabilityTestData.of(build).getDurations(build)
+                .get("junit/test.foo.bar/BundleResolverIntegrationTest/testGetBundleLocation");
+        assertThat(durations.getSamples()).isEqualTo(DurationHistogram.MIN_SAMPLES);
+        assertThat(durations.getMedian()).isEqualTo(0.656f);
+        assertThat(durations.getRegression()).isEqualTo(1f);
+
+        StabilityProjectAction action = project.getAction(StabilityProjectAction.class);
+        assertThat(action.getSlowestTests().get(0).getId())
+                .isEqualTo("junit/test.foo.bar/BundleResolverIntegrationTest/testGetBundleLocation");
+        assertThat(action.getMostRegressedTests()).extracting(StabilityProjectAction.TestDuration::getRegression)
+                .containsOnly("1.0x");
+
+        String page = j.createWebClient().getPage(project, "test-stability/durations")
+                .getWebResponse().getContentAsString();
+        assertThat(page).contains("Most regressed tests").contains("testGetBundleLocation").contains("0.656s");
+    }
+
+    @Test
+    public void exportStabilityAsJson() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+
+        Run build1 = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+
+        JenkinsRule.WebClient wc = j.createWebClient();
+        wc.getOptions().setThrowExceptionOnFailingStatusCode(false);
+        URL url = new URL(j.getURL(), project.getUrl() + "test-stability/json?prefix=junit/test.foo.bar/ProjectSettingsTest");
+        WebResponse response = wc.getPage(new WebRequest(url)).getWebResponse();
+        assertThat(response.getStatusCode()).isEqualTo(200);
+        assertThat(response.getContentAsString())
+                .startsWith("{\"build\":" + build1.getNumber())
+                .contains("ProjectSettingsTest")
+                .doesNotContain("DefaultIntegrationTest");
+
+        // unchanged data is not sent again
+        WebRequest conditional = new WebRequest(url);
+        conditional.setAdditionalHeader("If-None-Match", response.getResponseHeaderValue("ETag"));
+        assertThat(wc.getPage(conditional).getWebResponse().getStatusCode()).isEqualTo(304);
+
+        WebResponse buildResponse = wc.getPage(new WebRequest(
+                new URL(j.getURL(), build1.getUrl() + "test-stability/json"))).getWebResponse();
+        assertThat(buildResponse.getContentAsString()).contains("ProjectSettingsTest");
+    }
+
+    @Test
+    public void previousDataIsServedFromCache() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+
+        StabilityDataCache cache = ExtensionList.lookupSingleton(StabilityDataCache.class);
+        long hits = cache.getHits();
+        // the publisher looks up the previous results of every test
+        runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        assertThat(cache.getHits()).isGreaterThan(hits);
+
+        assertThat(j.createWebClient().goTo("manage/test-stability-cache/").getWebResponse().getContentAsString())
+                .contains("Released under heap pressure");
+    }
+
+    @Test
+    public void deletedJobIsDroppedFromCache() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("recreated");
+        Run build = runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        StabilityDataCache cache = ExtensionList.lookupSingleton(StabilityDataCache.class);
+        int size = cache.getSize();
+
+        build.delete();
+        assertThat(cache.getSize()).isEqualTo(size - 1);
+
+        runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        project.delete();
+        // nothing left for a job created under the same name
+        assertThat(cache.getSize()).isEqualTo(size - 1);
+    }
+
+    @Test
+    public void publishUpdatesMetrics() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        runBuild(project, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+
+        String metrics = j.createWebClient().goTo("test-stability-metrics/", "text/plain")
+                .getWebResponse().getContentAsString();
+        assertThat(metrics)
+                .contains("# TYPE jenkins_test_stability_flaky_tests gauge")
+                .contains("jenkins_test_stability_tracked_histories{job=\"" + project.getFullName() + "\"}")
+                .contains("jenkins_test_stability_publish_seconds_count{job=\"" + project.getFullName() + "\"} 1");
+    }
+
+    @Test
+    public void metricsAreSeededFromStoredIndex() throws Exception {
+        FreeStyleProject published = j.createFreeStyleProject();
+        runBuild(published, "workspaceMixedResults.zip", Result.UNSTABLE, true);
+        // as if the job had published before the controller started
+        FreeStyleProject restored = j.createFreeStyleProject();
+        Files.copy(new File(published.getRootDir(), StabilityIndex.FILE_NAME).toPath(),
+                new File(restored.getRootDir(), StabilityIndex.FILE_NAME).toPath());
+
+        String metrics = j.createWebClient().goTo("test-stability-metrics/", "text/plain")
+                .getWebResponse().getContentAsString();
+        assertThat(metrics)
+                .contains("jenkins_test_stability_tracked_histories{job=\"" + restored.getFullName() + "\"}")
+                .contains("jenkins_test_stability_publish_seconds_count{job=\"" + restored.getFullName() + "\"} 0")
+                .doesNotContain("jenkins_test_stability_last_publish_seconds{job=\"" + restored.getFullName() + "\"}");
     }
 
     // Runs a dummy build with the given workspace zip file and returns the FreeStyleBuild (Run)
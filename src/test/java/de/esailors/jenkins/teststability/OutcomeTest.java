@@ -0,0 +1,42 @@
+package de.esailors.jenkins.teststability;
+
+import org.junit.Test;
+
+import org.junit.Assert;
+
+public class OutcomeTest {
+
+	@Test
+	public void failureFollowedByPassIsPassedOnRetry() {
+		Assert.assertEquals(Outcome.PASSED_ON_RETRY, Outcome.FAILED.rerun(Outcome.PASSED));
+		Assert.assertEquals(Outcome.PASSED_ON_RETRY, Outcome.FAILED.rerun(Outcome.FAILED).rerun(Outcome.PASSED));
+		Assert.assertEquals(Outcome.PASSED_ON_RETRY, Outcome.PASSED_ON_RETRY.rerun(Outcome.FAILED));
+	}
+	
+	@Test
+	public void repeatedOutcomesAreCollapsed() {
+		Assert.assertEquals(Outcome.FAILED, Outcome.FAILED.rerun(Outcome.FAILED));
+		Assert.assertEquals(Outcome.PASSED, Outcome.PASSED.rerun(Outcome.PASSED));
+		Assert.assertEquals(Outcome.PASSED, Outcome.SKIPPED.rerun(Outcome.PASSED));
+		Assert.assertEquals(Outcome.FAILED, Outcome.FAILED.rerun(Outcome.SKIPPED));
+	}
+	
+	@Test
+	public void passedOnRetryIsRecordedAsFailure() {
+		Assert.assertTrue(Outcome.PASSED_ON_RETRY.isRecorded());
+		Assert.assertTrue(Outcome.PASSED_ON_RETRY.isFailure());
+		Assert.assertFalse(Outcome.PASSED.isFailure());
+		Assert.assertFalse(Outcome.SKIPPED.isRecorded());
+	}
+	
+	@Test
+	public void passedOnRetryIsShownInTheDescription() {
+		CircularStabilityHistory ringBuffer = new CircularStabilityHistory(10);
+		ringBuffer.add(1, true);
+		ringBuffer.add(2, false);
+		
+		StabilityTestAction action = new StabilityTestAction(ringBuffer, null, true);
+		Assert.assertTrue(action.isPassedOnRetry());
+		Assert.assertTrue(action.getDescription().endsWith("Passed on retry in this build"));
+	}
+}
@@ -12,6 +12,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 
@@ -61,6 +62,46 @@ public class PipelineTest {
         expectSuccessAfter2MixedResults(testResult(build5));
     }
 
+    @Test
+    public void stabilityStepReturnsTrackedTests() throws Exception {
+        WorkflowJob project = j.jenkins.createProject(WorkflowJob.class, "test-job");
+
+        Run build = runBuild(project, "workspaceMixedResults.zip", "pipelineWithStabilityStep.groovy", Result.UNSTABLE);
+        j.assertLogContains("build " + build.getNumber() + " unstable tests [", build);
+        j.assertLogContains("junit/test.foo.bar/ProjectSettingsTest", build);
+        j.assertLogNotContains("DefaultIntegrationTest", build);
+    }
+
+    @Test
+    public void everyJunitStepKeepsItsStabilityData() throws Exception {
+        WorkflowJob project = j.jenkins.createProject(WorkflowJob.class, "test-job");
+
+        runBuild(project, "workspaceMixedResults.zip", "pipelineWithTwoJunitSteps.groovy", Result.UNSTABLE);
+        Run build = runBuild(project, "workspaceMixedResults.zip", "pipelineWithTwoJunitSteps.groovy", Result.UNSTABLE);
+        assertThat(StabilityDataFile.getFile(build.getRootDir())).exists();
+        assertThat(new File(build.getRootDir(), "test-stability-2.bin")).exists();
+
+        StabilityTestAction first = getClassResult(testResult(build), "test.foo.bar", "ProjectSettingsTest")
+                .getTestAction(StabilityTestAction.class);
+        assertThat(first.getTotal()).isEqualTo(2);
+        StabilityTestAction second = getClassResult(testResult(build), "second", "SecondTest")
+                .getTestAction(StabilityTestAction.class);
+        assertThat(second.getTotal()).isEqualTo(2);
+
+        // the job index covers the tests of both steps
+        StabilityIndex index = StabilityIndex.get(project);
+        assertThat(index.getBuildNumber()).isEqualTo(build.getNumber());
+        assertThat(index.query(StabilityIndex.Sort.FLAKINESS, "junit/test.foo.bar/ProjectSettingsTest", 0, 10).getMatches())
+                .isGreaterThan(0);
+        assertThat(index.query(StabilityIndex.Sort.FLAKINESS, "junit/second/SecondTest", 0, 10).getMatches())
+                .isGreaterThan(0);
+
+        // and so do the duration pages
+        assertThat(project.getAction(StabilityProjectAction.class).getSlowestTests())
+                .extracting(StabilityProjectAction.TestDuration::getId)
+                .contains("junit/test.foo.bar/ProjectSettingsTest/testNatureAddition", "junit/second/SecondTest/fails");
+    }
+
     // Creates a job from the given workspace zip file, builds it and returns the WorkflowRun
     private WorkflowRun runBuild(WorkflowJob project, String workspaceZip, String pipelineFile, Result expectedStatus) throws Exception {
         FilePath workspace = j.jenkins.getWorkspaceFor(project);
@@ -0,0 +1,168 @@
+package de.esailors.jenkins.teststability;
+
+import hudson.Launcher;
+import hudson.XmlFile;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Descriptor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Run;
+import hudson.tasks.junit.JUnitResultArchiver;
+import hudson.tasks.junit.TestDataPublisher;
+import hudson.util.DescribableList;
+import org.junit.Rule;
+import org.netbeans.insane.scanner.CountingVisitor;
+import org.netbeans.insane.scanner.ScannerUtils;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Publishes generated test suites over many builds and fails if publishing,
+ * loading or storing the stability data crosses a threshold.
+ * <p>
+ * The defaults keep the test fast. Run e.g.
+ * {@code mvn test -Dtest=ScaleTest -Dscale.tests=100000 -Dscale.builds=500}
+ * for production sized suites; every size and threshold below can be set as a
+ * system property.
+ */
+public class ScaleTest {
+    private static final Logger LOGGER = Logger.getLogger(ScaleTest.class.getName());
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    // size of the generated suite
+    private static final int TESTS = Integer.getInteger("scale.tests", 2000);
+    private static final int TESTS_PER_CLASS = Integer.getInteger("scale.testsPerClass", 50);
+    private static final int BUILDS = Integer.getInteger("scale.builds", 20);
+    // share of tests which fail in every other build on average
+    private static final double FLAKY_RATE = Double.parseDouble(System.getProperty("scale.flakyRate", "0.01"));
+    // share of tests which newly fail all at once in the middle build
+    private static final double BURST_RATE = Double.parseDouble(System.getProperty("scale.burstRate", "0.05"));
+
+    // thresholds; the default suite takes about 340 bytes of heap and 170 bytes of data file per test,
+    // most of it for the durations, so the size limits allow about twice that
+    private static final long MAX_PUBLISH_MILLIS = Long.getLong("scale.maxPublishMillis", 10000);
+    private static final long MAX_LOAD_MILLIS = Long.getLong("scale.maxLoadMillis", 5000);
+    private static final long MAX_HEAP_BYTES_PER_TEST = Long.getLong("scale.maxHeapBytesPerTest", 700);
+    private static final long MAX_BUILD_XML_BYTES = Long.getLong("scale.maxBuildXmlBytes", 64L * 1024);
+    private static final long MAX_DATA_FILE_BYTES_PER_TEST = Long.getLong("scale.maxDataFileBytesPerTest", 340);
+
+    @Test
+    public void publishLargeSuiteOverManyBuilds() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new SuiteGenerator());
+
+        DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>> publishers =
+                new DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>>(project);
+        publishers.add(new StabilityTestDataPublisher());
+        JUnitResultArchiver archiver = new JUnitResultArchiver("results.xml");
+        archiver.setTestDataPublishers(publishers);
+        project.getPublishersList().add(archiver);
+
+        double maxPublishSeconds = 0;
+        long maxHeapBytes = 0;
+        long maxEstimatedHeapBytes = 0;
+        List<Run<?, ?>> builds = new ArrayList<Run<?, ?>>();
+        for (int i = 0; i < BUILDS; i++) {
+            FreeStyleBuild build = project.scheduleBuild2(0).get();
+            builds.add(build);
+            maxPublishSeconds = Math.max(maxPublishSeconds, StabilityMetrics.getLastPublishSeconds(project));
+            // the data as published, sharing the storage of its histories with the previous builds
+            maxHeapBytes = Math.max(maxHeapBytes,
+                    retainedBytes(StabilityDataCache.get(build, StabilityDataFile.FILE_NAME)));
+            maxEstimatedHeapBytes = Math.max(maxEstimatedHeapBytes, StabilityMetrics.getHistoryBytes(project));
+        }
+
+        long maxLoadMillis = 0;
+        long maxBuildXmlBytes = 0;
+        long maxDataFileBytes = 0;
+        for (Run<?, ?> build : builds) {
+            File buildXml = new File(build.getRootDir(), "build.xml");
+            maxBuildXmlBytes = Math.max(maxBuildXmlBytes, buildXml.length());
+
+            long started = System.nanoTime();
+            new XmlFile(Run.XSTREAM, buildXml).read();
+            File data = StabilityDataFile.getFile(build.getRootDir());
+            if (data.exists()) {
+                StabilityDataFile.read(data);
+                maxDataFileBytes = Math.max(maxDataFileBytes, data.length());
+            }
+            maxLoadMillis = Math.max(maxLoadMillis, (System.nanoTime() - started) / 1000000);
+        }
+
+        // the measured values, to pick thresholds for production sized suites
+        LOGGER.info(String.format(Locale.ENGLISH, "%d tests x %d builds, flaky %.2f%%, burst %.2f%%: "
+                        + "publish %.0fms, build load %dms, retained heap %d bytes (estimated %d), build.xml %d bytes, "
+                        + "%s %d bytes",
+                TESTS, BUILDS, 100 * FLAKY_RATE, 100 * BURST_RATE,
+                1000 * maxPublishSeconds, maxLoadMillis, maxHeapBytes, maxEstimatedHeapBytes, maxBuildXmlBytes,
+                StabilityDataFile.FILE_NAME, maxDataFileBytes));
+
+        assertThat((long) (1000 * maxPublishSeconds)).as("publish time in ms").isLessThanOrEqualTo(MAX_PUBLISH_MILLIS);
+        assertThat(maxLoadMillis).as("build load time in ms").isLessThanOrEqualTo(MAX_LOAD_MILLIS);
+        assertThat(maxHeapBytes).as("retained heap in bytes").isLessThanOrEqualTo(MAX_HEAP_BYTES_PER_TEST * TESTS);
+        // the estimate reported by the metrics must stay close to the real layout
+        assertThat(maxEstimatedHeapBytes).as("estimated heap in bytes").isBetween(maxHeapBytes / 2, maxHeapBytes * 2);
+        assertThat(maxBuildXmlBytes).as("build.xml size in bytes").isLessThanOrEqualTo(MAX_BUILD_XML_BYTES);
+        assertThat(maxDataFileBytes).as(StabilityDataFile.FILE_NAME + " size in bytes")
+                .isLessThanOrEqualTo(MAX_DATA_FILE_BYTES_PER_TEST * TESTS);
+    }
+
+    // Heap retained by the given object graph, counted like MemoryAssert does
+    private static long retainedBytes(Object root) throws Exception {
+        CountingVisitor visitor = new CountingVisitor();
+        ScannerUtils.scan(ScannerUtils.skipNonStrongReferencesFilter(), visitor, Collections.singleton(root), false);
+        return visitor.getTotalSize();
+    }
+
+    // Writes results.xml with the generated suite for the build being run
+    private static class SuiteGenerator extends TestBuilder {
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+            int number = build.getNumber();
+            // same flaky tests in every build, different outcomes
+            Random flaky = new Random(42);
+            Random outcome = new Random(number);
+            boolean burst = number == BUILDS / 2 + 1;
+
+            StringBuilder xml = new StringBuilder(TESTS * 120);
+            xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuites>\n");
+            for (int c = 0; c * TESTS_PER_CLASS < TESTS; c++) {
+                String className = "scale.pkg" + (c % 100) + ".Generated" + c + "Test";
+                xml.append("<testsuite name=\"").append(className).append("\">\n");
+                for (int t = c * TESTS_PER_CLASS; t < Math.min(TESTS, (c + 1) * TESTS_PER_CLASS); t++) {
+                    boolean failed = flaky.nextDouble() < FLAKY_RATE && outcome.nextBoolean();
+                    if (burst && outcome.nextDouble() < BURST_RATE) {
+                        failed = true;
+                    }
+                    xml.append("<testcase classname=\"").append(className)
+                            .append("\" name=\"testWithAParameterizedName[").append(t).append("]\" time=\"")
+                            .append(outcome.nextInt(2000) / 1000.0).append("\">");
+                    if (failed) {
+                        xml.append("<failure message=\"generated\">generated failure</failure>");
+                    }
+                    xml.append("</testcase>\n");
+                }
+                xml.append("</testsuite>\n");
+            }
+            xml.append("</testsuites>\n");
+
+            build.getWorkspace().child("results.xml").write(xml.toString(), "UTF-8");
+            return true;
+        }
+    }
+}
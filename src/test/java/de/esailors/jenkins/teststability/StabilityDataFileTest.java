@@ -0,0 +1,78 @@
+package de.esailors.jenkins.teststability;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StabilityDataFileTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void dataMustSurviveWriteAndRead() throws Exception {
+		CircularStabilityHistory history = new CircularStabilityHistory(5);
+		history.add(1, true, 1500000000000L);
+		history.add(2, false);
+		history.add(3, false, 1500000060000L);
+		history.add(4, false, 1500000120000L);
+		DurationHistogram durations = DurationHistogram.record(DurationHistogram.record(null, 0.5f), 2f);
+
+		Map<String, CircularStabilityHistory> stability = new HashMap<String, CircularStabilityHistory>();
+		stability.put("junit/a/B", history);
+		Map<String, DurationHistogram> durationsPerTest = new HashMap<String, DurationHistogram>();
+		durationsPerTest.put("junit/a/B/c", durations);
+
+		File dir = tmp.newFolder();
+		File file = new File(dir, StabilityDataFile.claimFileName(dir));
+		new StabilityDataFile(stability, durationsPerTest).write(file);
+		StabilityDataFile read = StabilityDataFile.read(file);
+
+		CircularStabilityHistory readHistory = read.stability.get("junit/a/B");
+		Assert.assertEquals(5, readHistory.getMaxSize());
+		Assert.assertEquals(4, readHistory.size());
+		Assert.assertEquals(1, readHistory.getBuildNumber(0));
+		Assert.assertTrue(readHistory.isPassed(0));
+		Assert.assertFalse(readHistory.isPassed(3));
+		Assert.assertEquals(1500000000000L, readHistory.getTimestamp(0));
+		Assert.assertEquals(0, readHistory.getTimestamp(1));
+		Assert.assertEquals(1500000120000L, readHistory.getTimestamp(3));
+		Assert.assertEquals(history.getUnstableSince(), readHistory.getUnstableSince());
+
+		DurationHistogram readDurations = read.durations.get("junit/a/B/c");
+		Assert.assertEquals(2, readDurations.getSamples());
+		Assert.assertEquals(2f, readDurations.getLastDuration(), 0f);
+		Assert.assertEquals(durations.getMedian(), readDurations.getMedian(), 0f);
+	}
+	
+	@Test
+	public void hashedKeysMustBeWrittenAsLongs() throws Exception {
+		CircularStabilityHistory history = new CircularStabilityHistory(5);
+		history.add(1, false);
+		Map<Long, CircularStabilityHistory> stability = new HashMap<Long, CircularStabilityHistory>();
+		stability.put(TestIdTable.key("junit/a/B"), history);
+
+		File dir = tmp.newFolder();
+		File file = new File(dir, StabilityDataFile.claimFileName(dir));
+		StabilityDataFile.hashed(stability, new HashMap<Long, DurationHistogram>()).write(file);
+		StabilityDataFile read = StabilityDataFile.read(file);
+
+		Assert.assertTrue(read.hashedKeys);
+		Assert.assertEquals(1, read.stability.get(TestIdTable.key("junit/a/B")).size());
+		// header, two counts, and the key plus the history with one result
+		Assert.assertEquals(4 + 4 + 1 + 4 + 8 + (4 + 4 + 8 + 9 + 12) + 4, file.length());
+	}
+
+	@Test
+	public void everyDataOfABuildGetsItsOwnFile() throws Exception {
+		File dir = tmp.newFolder();
+		Assert.assertEquals(StabilityDataFile.FILE_NAME, StabilityDataFile.claimFileName(dir));
+		Assert.assertEquals("test-stability-2.bin", StabilityDataFile.claimFileName(dir));
+		Assert.assertEquals("test-stability-3.bin", StabilityDataFile.claimFileName(dir));
+	}
+}
@@ -0,0 +1,83 @@
+package de.esailors.jenkins.teststability;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StabilityIndexTest {
+
+	private static StabilityIndex index() {
+		Map<String, CircularStabilityHistory> histories = new HashMap<String, CircularStabilityHistory>();
+		// flaky: changes every time
+		histories.put("junit/a/Flaky/test", history(true, false, true, false));
+		// broken: fails every time
+		histories.put("junit/a/Broken/test", history(false, false, false, false));
+		// recovered: failed once, long ago
+		histories.put("junit/b/Recovered/test", history(false, true, true, true));
+		return StabilityIndex.of(4, histories);
+	}
+
+	private static CircularStabilityHistory history(boolean... passed) {
+		CircularStabilityHistory history = new CircularStabilityHistory(10);
+		for (int i = 0; i < passed.length; i++) {
+			history.add(i + 1, passed[i]);
+		}
+		return history;
+	}
+
+	@Test
+	public void entriesMustBeSortedByFlakiness() {
+		StabilityIndex.Page page = index().query(StabilityIndex.Sort.FLAKINESS, null, 0, 10);
+
+		Assert.assertEquals(3, page.getMatches());
+		Assert.assertEquals("junit/a/Flaky/test", page.getEntries().get(0).getId());
+		Assert.assertEquals(100, page.getEntries().get(0).getFlakiness());
+	}
+
+	@Test
+	public void entriesMustBeSortedByStabilityAndLastFailure() {
+		StabilityIndex index = index();
+
+		StabilityIndex.Entry leastStable = index.query(StabilityIndex.Sort.STABILITY, null, 0, 1).getEntries().get(0);
+		Assert.assertEquals("junit/a/Broken/test", leastStable.getId());
+		Assert.assertEquals(4, leastStable.getFailed());
+		Assert.assertEquals(4, leastStable.getLastFailure());
+
+		StabilityIndex.Page byLastFailure = index.query(StabilityIndex.Sort.LAST_FAILURE, null, 0, 10);
+		Assert.assertEquals("junit/b/Recovered/test", byLastFailure.getEntries().get(2).getId());
+		Assert.assertEquals(1, byLastFailure.getEntries().get(2).getLastFailure());
+	}
+
+	@Test
+	public void queryMustFilterAndPage() {
+		StabilityIndex index = index();
+
+		StabilityIndex.Page page = index.query(StabilityIndex.Sort.FLAKINESS, "junit/a/", 1, 1);
+		Assert.assertEquals(2, page.getMatches());
+		Assert.assertEquals(1, page.getEntries().size());
+		Assert.assertTrue(page.hasPrevious());
+		Assert.assertFalse(page.hasNext());
+
+		page = index.query(StabilityIndex.Sort.FLAKINESS, null, 0, 2);
+		Assert.assertTrue(page.hasNext());
+		Assert.assertEquals(2, page.getNextOffset());
+	}
+
+	@Test
+	public void indexesOfOneBuildMustBeMerged() {
+		Map<String, CircularStabilityHistory> secondStep = new HashMap<String, CircularStabilityHistory>();
+		secondStep.put("junit/c/Other/test", history(true, false));
+		// published again with another result
+		secondStep.put("junit/a/Broken/test", history(false, true));
+
+		StabilityIndex merged = index().merge(StabilityIndex.of(4, secondStep));
+		Assert.assertEquals(4, merged.size());
+		Assert.assertEquals(4, merged.getBuildNumber());
+		StabilityIndex.Page page = merged.query(StabilityIndex.Sort.STABILITY, "junit/a/Broken/", 0, 10);
+		Assert.assertEquals(1, page.getMatches());
+		Assert.assertEquals(1, page.getEntries().get(0).getFailed());
+		Assert.assertEquals(1, merged.query(StabilityIndex.Sort.FLAKINESS, "junit/c/", 0, 10).getMatches());
+	}
+}
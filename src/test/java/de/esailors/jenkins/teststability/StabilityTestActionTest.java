@@ -58,4 +58,12 @@ public class StabilityTestActionTest {
 		StabilityTestAction action = new StabilityTestAction(ringBuffer);
 		Assert.assertEquals(50, action.getFlakiness());
 	}
+	
+	@Test
+	public void badgeIsSharedByTestsWithoutHistory() {
+		String badge = new StabilityTestAction(null).getBadgeHtml("/jenkins");
+		Assert.assertTrue(badge.startsWith("<img src='/jenkins" + new StabilityTestAction(null).getSmallImagePath() + "'/>"));
+		Assert.assertSame(badge, new StabilityTestAction(null).getBadgeHtml("/jenkins"));
+		Assert.assertTrue(new StabilityTestAction(null).getBadgeHtml("").startsWith("<img src='/"));
+	}
 }